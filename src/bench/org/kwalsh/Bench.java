@@ -0,0 +1,131 @@
+// Bench.java
+// A small benchmark harness for BetterFileDialog, in the spirit of JMH but
+// without any dependencies, so it builds with nothing more than the Makefile.
+// The benchmarks live in package org.kwalsh, so they can reach the
+// package-private protocol and install code directly.
+//
+// Usage:
+//   java -cp betterfiledialog.jar:build-bench org.kwalsh.Bench [regex]
+// Only benchmarks whose names contain a match for regex are run. Settings can
+// be changed with system properties:
+//   -Dbench.warmup=ms     warm-up time per benchmark (default 1000)
+//   -Dbench.rounds=n      measured rounds per benchmark (default 10)
+//   -Dbench.round=ms      length of each round (default 200)
+//
+// Each line of output gives the median and best time per operation over the
+// rounds, the bytes allocated per operation (from the thread's allocation
+// counter, so this is exact, not sampled), and the number of garbage
+// collections during the measured rounds.
+
+package org.kwalsh;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.regex.Pattern;
+
+public class Bench {
+
+  // A benchmark body. Returns the number of operations it did, so cheap
+  // operations can be looped inside the body to keep timing overhead out.
+  interface Op { int run() throws Exception; }
+
+  // Untimed work done before each call to an Op, e.g. to make a cold start.
+  interface Setup { void run() throws Exception; }
+
+  static final com.sun.management.ThreadMXBean threads =
+    (com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+
+  static long warmupMillis = Long.getLong("bench.warmup", 1000);
+  static int rounds = Integer.getInteger("bench.rounds", 10);
+  static long roundMillis = Long.getLong("bench.round", 200);
+  static Pattern only;
+
+  // Results are added here so the JIT can't discard the work.
+  static long sink;
+
+  public static void main(String[] args) throws Exception {
+    if (args.length > 0)
+      only = Pattern.compile(args[0]);
+    System.out.printf("%-44s %12s %12s %12s %5s%n",
+        "benchmark", "median", "best", "alloc", "gcs");
+    FilterBench.run();
+    ProtocolBench.run();
+    InstallBench.run();
+    TraceBench.run();
+    if (sink == 42)
+      System.out.println();
+  }
+
+  static void bench(String name, Op op) throws Exception {
+    bench(name, null, op);
+  }
+
+  static void bench(String name, Setup setup, Op op) throws Exception {
+    if (only != null && !only.matcher(name).find())
+      return;
+    long tid = Thread.currentThread().getId();
+
+    long stop = System.nanoTime() + warmupMillis * 1000000L;
+    while (System.nanoTime() < stop) {
+      if (setup != null)
+        setup.run();
+      sink += op.run();
+    }
+
+    double[] perOp = new double[rounds];
+    long totalOps = 0, totalBytes = 0;
+    long gcs = gcCount();
+    for (int r = 0; r < rounds; r++) {
+      long ops = 0, nanos = 0;
+      stop = System.nanoTime() + roundMillis * 1000000L;
+      if (setup == null) {
+        // Time the whole round at once.
+        long a0 = threads.getThreadAllocatedBytes(tid);
+        long t0 = System.nanoTime();
+        long t1;
+        do {
+          ops += op.run();
+          t1 = System.nanoTime();
+        } while (t1 < stop);
+        totalBytes += threads.getThreadAllocatedBytes(tid) - a0;
+        nanos = t1 - t0;
+      } else {
+        // Time each call separately, leaving out the setup.
+        do {
+          setup.run();
+          long a0 = threads.getThreadAllocatedBytes(tid);
+          long t0 = System.nanoTime();
+          ops += op.run();
+          long t1 = System.nanoTime();
+          totalBytes += threads.getThreadAllocatedBytes(tid) - a0;
+          nanos += t1 - t0;
+        } while (System.nanoTime() < stop);
+      }
+      perOp[r] = nanos / (double)ops;
+      totalOps += ops;
+    }
+    gcs = gcCount() - gcs;
+
+    Arrays.sort(perOp);
+    System.out.printf("%-44s %12s %12s %10.1f B %5d%n", name,
+        time(perOp[rounds / 2]), time(perOp[0]),
+        totalBytes / (double)totalOps, gcs);
+  }
+
+  static long gcCount() {
+    long n = 0;
+    for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans())
+      n += Math.max(0, gc.getCollectionCount());
+    return n;
+  }
+
+  static String time(double ns) {
+    if (ns < 10000)
+      return String.format("%.1f ns", ns);
+    if (ns < 10000000)
+      return String.format("%.1f us", ns / 1000);
+    return String.format("%.1f ms", ns / 1000000);
+  }
+
+}
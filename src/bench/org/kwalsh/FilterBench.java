@@ -0,0 +1,156 @@
+// FilterBench.java
+// Benchmarks for BetterFileDialog.Filter: construction, matching, and encoding
+// for the peer.
+
+package org.kwalsh;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Random;
+
+import static org.kwalsh.Bench.bench;
+
+class FilterBench {
+
+  static final String[] EXTS = {
+    "jpg", "JPG", "jpeg", "png", "PNG", "gif", "txt", "md", "tar.gz", "TAR.GZ",
+    "tgz", "zip", "docx", "xlsx", "pdf", "java", "class", "", "bak", "jfif",
+  };
+
+  // A corpus of realistic-looking file names, with a mix of matching and
+  // non-matching extensions, upper and lower case, dotfiles, and names with
+  // no extension at all.
+  static String[] corpus(int n) {
+    Random rnd = new Random(42);
+    String[] names = new String[n];
+    for (int i = 0; i < n; i++) {
+      StringBuilder sb = new StringBuilder();
+      if (rnd.nextInt(20) == 0)
+        sb.append('.');
+      int len = 3 + rnd.nextInt(20);
+      for (int j = 0; j < len; j++)
+        sb.append((char)('a' + rnd.nextInt(26)));
+      if (rnd.nextInt(5) == 0)
+        sb.append("_").append(i);
+      String ext = EXTS[rnd.nextInt(EXTS.length)];
+      if (ext.length() > 0)
+        sb.append('.').append(ext);
+      names[i] = sb.toString();
+    }
+    return names;
+  }
+
+  // n distinct extensions of 2 to 5 letters, like an "all supported formats"
+  // filter in an image or document editor.
+  static String[] manyExtensions(int n) {
+    Random rnd = new Random(7);
+    ArrayList<String> exts = new ArrayList<>();
+    while (exts.size() < n) {
+      int len = 2 + rnd.nextInt(4);
+      StringBuilder sb = new StringBuilder();
+      for (int j = 0; j < len; j++)
+        sb.append((char)('a' + rnd.nextInt(26)));
+      String ext = sb.toString();
+      if (!exts.contains(ext))
+        exts.add(ext);
+    }
+    return exts.toArray(new String[0]);
+  }
+
+  static void run() throws Exception {
+    String[] names = corpus(10000);
+    String dir = System.getProperty("java.io.tmpdir") + File.separator + "bfd-bench-missing";
+    String[] paths = new String[names.length];
+    File[] files = new File[names.length];
+    for (int i = 0; i < names.length; i++) {
+      paths[i] = dir + File.separator + names[i];
+      files[i] = new File(paths[i]);
+    }
+
+    BetterFileDialog.Filter images = BetterFileDialog.IMAGE_FILTER;
+    BetterFileDialog.Filter jpg = BetterFileDialog.JPG_FILTER;
+    BetterFileDialog.Filter tarballs =
+      new BetterFileDialog.Filter("Tarballs", "tar", "tar.gz", "tgz");
+    BetterFileDialog.Filter[] all = { images, jpg, tarballs };
+    String[] many = manyExtensions(150);
+    BetterFileDialog.Filter supported = new BetterFileDialog.Filter("All Supported", many);
+
+    bench("filter.acceptExtension(name), 3 filters", () -> {
+      int n = 0;
+      for (String s : names)
+        for (BetterFileDialog.Filter f : all)
+          if (f.acceptExtension(s)) n++;
+      Bench.sink += n;
+      return names.length * all.length;
+    });
+
+    bench("filter.acceptExtension(path), 3 filters", () -> {
+      int n = 0;
+      for (String s : paths)
+        for (BetterFileDialog.Filter f : all)
+          if (f.acceptExtension(s)) n++;
+      Bench.sink += n;
+      return paths.length * all.length;
+    });
+
+    bench("filter.acceptExtension(path), 150 exts", () -> {
+      int n = 0;
+      for (String s : paths)
+        if (supported.acceptExtension(s)) n++;
+      Bench.sink += n;
+      return paths.length;
+    });
+
+    bench("filter.accept(File), 3 filters", () -> {
+      int n = 0;
+      for (File file : files)
+        for (BetterFileDialog.Filter f : all)
+          if (f.accept(file)) n++;
+      Bench.sink += n;
+      return files.length * all.length;
+    });
+
+    bench("filter.accept(File), 1 filter", () -> {
+      int n = 0;
+      for (File file : files)
+        if (images.accept(file)) n++;
+      Bench.sink += n;
+      return files.length;
+    });
+
+    bench("filter.new", () -> {
+      for (int i = 0; i < 1000; i++)
+        Bench.sink += new BetterFileDialog.Filter("Tarballs", "tar", "tar.gz", "tgz").hashCode();
+      return 1000;
+    });
+
+    bench("filter.new+getExtensions, short exts", () -> {
+      for (int i = 0; i < 1000; i++)
+        Bench.sink += new BetterFileDialog.Filter("Tarballs", "tar", "tar.gz", "tgz").getExtensions().length();
+      return 1000;
+    });
+
+    bench("filter.new+getExtensions, 150 exts", () -> {
+      Bench.sink += new BetterFileDialog.Filter("All Supported", many).getExtensions().length();
+      return 1;
+    });
+
+    bench("filter.of+getExtensions, cached", () -> {
+      for (int i = 0; i < 1000; i++)
+        Bench.sink += BetterFileDialog.Filter.of("Tarballs", "tar", "tar.gz", "tgz").getExtensions().length();
+      return 1000;
+    });
+
+    supported.getExtensions();
+    bench("filter.encodeForPeer, 150 exts", () -> {
+      ArrayList<String> args = new ArrayList<>();
+      for (int i = 0; i < 100; i++) {
+        args.clear();
+        supported.encodeForPeer(args);
+        Bench.sink += args.size();
+      }
+      return 100;
+    });
+  }
+
+}
@@ -0,0 +1,75 @@
+// InstallBench.java
+// Benchmarks for installing the peer jars: the cold case, where jars must be
+// extracted and checksummed, and the warm case, where they are already in
+// place. This installs into a temporary directory, never into the real
+// ~/.swt directory.
+
+package org.kwalsh;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.stream.Stream;
+
+import static org.kwalsh.Bench.bench;
+
+class InstallBench {
+
+  static void deleteTree(Path p) throws IOException {
+    if (!Files.exists(p))
+      return;
+    try (Stream<Path> s = Files.walk(p)) {
+      s.sorted(Comparator.reverseOrder()).forEach(f -> f.toFile().delete());
+    }
+  }
+
+  static void run() throws Exception {
+    HashMap<String, String> checksums = BetterFileDialog.readChecksums();
+    String swt = BetterFileDialog.isMacOS ? "swt-macos.jar" :
+        BetterFileDialog.isWindows ? "swt-windows.jar" : "swt-linux.jar";
+
+    // installJar() puts jars under ${user.home}/.swt
+    Path home = Files.createTempDirectory("bfd-bench-home");
+    Path swtdir = home.resolve(".swt");
+    String realHome = System.getProperty("user.home");
+    System.setProperty("user.home", home.toString());
+    try {
+      bench("install.installJar cold, bfd-peer.jar", () -> deleteTree(swtdir), () -> {
+        BetterFileDialog.installJar("bfd-peer.jar", checksums);
+        return 1;
+      });
+
+      bench("install.installJar cold, " + swt, () -> deleteTree(swtdir), () -> {
+        BetterFileDialog.installJar(swt, checksums);
+        return 1;
+      });
+
+      // Jars in place, but no stamps, so they must be checksummed again.
+      BetterFileDialog.installJar("bfd-peer.jar", checksums);
+      BetterFileDialog.installJar(swt, checksums);
+      bench("install.installJar unstamped, both jars", () -> {
+        try (Stream<Path> s = Files.walk(swtdir)) {
+          s.filter(f -> f.toString().endsWith(".verified"))
+            .forEach(f -> f.toFile().delete());
+        }
+      }, () -> {
+        BetterFileDialog.installJar("bfd-peer.jar", checksums);
+        BetterFileDialog.installJar(swt, checksums);
+        return 2;
+      });
+
+      bench("install.installJar warm, both jars", () -> {
+        Bench.sink += BetterFileDialog.installJar("bfd-peer.jar", checksums).length();
+        Bench.sink += BetterFileDialog.installJar(swt, checksums).length();
+        return 2;
+      });
+    } finally {
+      System.setProperty("user.home", realHome);
+      deleteTree(home);
+    }
+  }
+
+}
@@ -0,0 +1,173 @@
+// ProtocolBench.java
+// Benchmarks for the client/peer protocol: encoding requests, and sending and
+// parsing large multi-file results the way the peer and SwtDialogPeer do, with
+// and without verbose tracing mixed in.
+
+package org.kwalsh;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import static org.kwalsh.Bench.bench;
+
+class ProtocolBench {
+
+  // A Process whose stdout replays canned bytes, standing in for a peer.
+  static class CannedProcess extends Process {
+    final InputStream in;
+    CannedProcess(byte[] stdout) { in = new ByteArrayInputStream(stdout); }
+    public OutputStream getOutputStream() { return OutputStream.nullOutputStream(); }
+    public InputStream getInputStream() { return in; }
+    public InputStream getErrorStream() { return InputStream.nullInputStream(); }
+    public int waitFor() { return 0; }
+    public int exitValue() { return 0; }
+    public void destroy() { }
+  }
+
+  // Everything a one-shot peer writes when the user picks the given files.
+  static byte[] multiResult(String dir, String[] names) throws Exception {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    PeerProtocol.Writer w = new PeerProtocol.Writer(bytes);
+    w.magic();
+    w.send(PeerProtocol.HELLO, PeerProtocol.VERSION);
+    w.send(PeerProtocol.TRACE, "Executing");
+    w.send(PeerProtocol.RESULT_DIR, dir);
+    w.send(PeerProtocol.RESULT_COUNT, names.length);
+    w.sendBatches(PeerProtocol.RESULT_BATCH, names, BetterFileDialogPeer.BATCH_BYTES);
+    w.send(PeerProtocol.EXIT);
+    return bytes.toByteArray();
+  }
+
+  // The same, but from a peer tracing verbosely: traces TRACE frames in all,
+  // spread evenly between the result batches.
+  static byte[] tracedMultiResult(String dir, String[] names, int traces) throws Exception {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    PeerProtocol.Writer w = new PeerProtocol.Writer(bytes);
+    w.magic();
+    w.send(PeerProtocol.HELLO, PeerProtocol.VERSION);
+    w.send(PeerProtocol.RESULT_DIR, dir);
+    w.send(PeerProtocol.RESULT_COUNT, names.length);
+    ArrayList<String[]> batches = new ArrayList<>();
+    int from = 0, bytesInBatch = 0;
+    for (int i = 0; i < names.length; i++) {
+      bytesInBatch += 4 + names[i].length();
+      if (bytesInBatch >= BetterFileDialogPeer.BATCH_BYTES || i == names.length - 1) {
+        batches.add(Arrays.copyOfRange(names, from, i + 1));
+        from = i + 1;
+        bytesInBatch = 0;
+      }
+    }
+    int sent = 0;
+    for (int b = 0; b < batches.size(); b++) {
+      int upTo = (int)((long)traces * (b + 1) / batches.size());
+      for (; sent < upTo; sent++)
+        w.send(PeerProtocol.TRACE, "Converting result " + sent + " of " + names.length +
+            " to a file name relative to " + dir);
+      w.send(PeerProtocol.RESULT_BATCH, Arrays.asList(batches.get(b)));
+    }
+    w.send(PeerProtocol.EXIT);
+    return bytes.toByteArray();
+  }
+
+  static void run() throws Exception {
+    for (int n : new int[] { 1000, 100000 }) {
+      String[] names = FilterBench.corpus(n);
+      byte[] canned = multiResult("/home/someone/Pictures", names);
+
+      bench("protocol.write results, " + n + " files", () -> {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(canned.length);
+        PeerProtocol.Writer w = new PeerProtocol.Writer(bytes);
+        w.send(PeerProtocol.RESULT_COUNT, names.length);
+        w.sendBatches(PeerProtocol.RESULT_BATCH, names, BetterFileDialogPeer.BATCH_BYTES);
+        Bench.sink += bytes.size();
+        return 1;
+      });
+
+      // The real peer conversation, reading from a canned peer.
+      BetterFileDialog[] dlg = new BetterFileDialog[1];
+      SwtDialogPeer.Call[] call = new SwtDialogPeer.Call[1];
+      bench("protocol.read results, " + n + " files", () -> {
+        BetterFileDialog d = new BetterFileDialog(BetterFileDialog.MODE_MULTI,
+            null, null, null, null);
+        d.backend = SwtDialogPeer.INSTANCE;
+        SwtDialogPeer.Call c = new SwtDialogPeer.Call(d.session, d.session);
+        c.peer = new PeerProcess(new CannedProcess(canned), false);
+        dlg[0] = d;
+        call[0] = c;
+      }, () -> {
+        BetterFileDialog d = dlg[0];
+        call[0].read();
+        if (d.peerResults.length != names.length || d.peerCountLeft != 0)
+          throw new Exception("read lost results");
+        Bench.sink += d.peerResults.length;
+        return 1;
+      });
+    }
+
+    // Result throughput with thousands of TRACE frames interleaved with the
+    // batches. Traces go to the in-memory buffer, not the console, so this
+    // measures the reader rather than the terminal.
+    for (int n : new int[] { 1000, 100000 }) {
+      String[] names = FilterBench.corpus(n);
+      int traces = 5000;
+      byte[] canned = tracedMultiResult("/home/someone/Pictures", names, traces);
+      BetterFileDialog[] dlg = new BetterFileDialog[1];
+      SwtDialogPeer.Call[] call = new SwtDialogPeer.Call[1];
+      int oldLevel = BetterFileDialog.traceBufferLevel;
+      BetterFileDialog.traceBufferLevel = 2;
+      try {
+        bench("protocol.read traced results, " + n + " files", () -> {
+          BetterFileDialog d = new BetterFileDialog(BetterFileDialog.MODE_MULTI,
+              null, null, null, null);
+          d.backend = SwtDialogPeer.INSTANCE;
+          SwtDialogPeer.Call c = new SwtDialogPeer.Call(d.session, d.session);
+          c.peer = new PeerProcess(new CannedProcess(canned), false);
+          dlg[0] = d;
+          call[0] = c;
+        }, () -> {
+          BetterFileDialog d = dlg[0];
+          call[0].read();
+          if (d.peerResults.length != names.length || d.peerCountLeft != 0)
+            throw new Exception("read lost results");
+          Bench.sink += d.peerResults.length;
+          return 1;
+        });
+      } finally {
+        BetterFileDialog.traceBufferLevel = oldLevel;
+      }
+      // Every name must arrive intact and in order, traces or not.
+      if (dlg[0] != null && !Arrays.equals(dlg[0].peerResults, names))
+        throw new Exception("results garbled by interleaved traces, " + n + " files");
+    }
+
+    BetterFileDialog.Filter supported =
+      new BetterFileDialog.Filter("All Supported", FilterBench.manyExtensions(150));
+    BetterFileDialog.Filter[] filters = {
+      supported, BetterFileDialog.IMAGE_FILTER, BetterFileDialog.ANY_FILTER };
+    BetterFileDialog dlg = new BetterFileDialog(BetterFileDialog.MODE_OPEN,
+        null, "Open", "/home/someone/Pictures/", filters);
+    ByteArrayOutputStream reqBytes = new ByteArrayOutputStream();
+    new PeerProtocol.Writer(reqBytes).send(PeerProtocol.REQUEST, SwtDialogPeer.peerRequest(dlg.session));
+    byte[] req = reqBytes.toByteArray();
+
+    bench("protocol.encode request, 150 exts", () -> {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream(req.length);
+      new PeerProtocol.Writer(bytes).send(PeerProtocol.REQUEST, SwtDialogPeer.peerRequest(dlg.session));
+      Bench.sink += bytes.size();
+      return 1;
+    });
+
+    bench("protocol.decode request, 150 exts", () -> {
+      PeerProtocol.Reader in = new PeerProtocol.Reader(new ByteArrayInputStream(req));
+      BetterFileDialogPeer.reset();
+      BetterFileDialogPeer.parseRequest(BetterFileDialogPeer.readRequest(in));
+      Bench.sink += BetterFileDialogPeer.filters.get(0).getExtensions().length();
+      return 1;
+    });
+  }
+
+}
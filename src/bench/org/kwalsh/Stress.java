@@ -0,0 +1,229 @@
+// Stress.java
+// Stress test for concurrent dialogs: many threads fire hundreds of simulated
+// dialogs at a DialogManager at once, each with its own DialogOptions, while
+// another thread keeps changing BetterFileDialog's static settings. Nothing is
+// shown, so this runs headless. The backend echoes each request back as its
+// result, so any cross-talk between dialogs, e.g. one dialog getting another's
+// title, options, or result, shows up as a mismatch.
+//
+// Usage:
+//   java -Djava.awt.headless=true -cp betterfiledialog.jar:build-bench org.kwalsh.Stress
+// Settings can be changed with system properties:
+//   -Dstress.threads=n      submitting threads (default 16)
+//   -Dstress.dialogs=n      dialogs per thread (default 40)
+//   -Dstress.concurrent=n   DialogManager limit (default 8)
+//   -Dstress.delay=ms       longest simulated user delay (default 5)
+
+package org.kwalsh;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class Stress {
+
+  static int threads = Integer.getInteger("stress.threads", 16);
+  static int perThread = Integer.getInteger("stress.dialogs", 40);
+  static int concurrent = Integer.getInteger("stress.concurrent", 8);
+  static int maxDelay = Integer.getInteger("stress.delay", 5);
+
+  static final ConcurrentLinkedQueue<String> failures = new ConcurrentLinkedQueue<>();
+
+  static void fail(String msg) {
+    if (failures.size() < 20)
+      System.out.println("FAIL: " + msg);
+    failures.add(msg);
+  }
+
+  // Where the echo backend "chooses" for a request: everything about the
+  // request that must not leak between dialogs goes into the path.
+  static String echo(String title, long id, String app, int nfilters) {
+    return "/nonexistent/stress/" + title + "/" + app + "/" + nfilters + "/" + id;
+  }
+
+  // Answers each dialog after a random delay with a path made from its own
+  // request, and checks that no more than the allowed number are up at once.
+  static class EchoDialogPeer implements DialogPeer {
+    final AtomicInteger inFlight = new AtomicInteger();
+    final AtomicInteger maxInFlight = new AtomicInteger();
+    final AtomicInteger shown = new AtomicInteger();
+
+    public String name() {
+      return "echo";
+    }
+
+    public void show(Request request, Response response) throws Exception {
+      int n = inFlight.incrementAndGet();
+      maxInFlight.accumulateAndGet(n, Math::max);
+      shown.incrementAndGet();
+      try {
+        DialogOptions opts = request.getOptions();
+        if (!opts.getTitle().equals(request.getTitle()))
+          fail("request title " + request.getTitle() + " vs options " + opts.getTitle());
+        response.shown();
+        int delay = ThreadLocalRandom.current().nextInt(maxDelay + 1);
+        if (delay > 0)
+          Thread.sleep(delay);
+        response.closed();
+        String path = echo(request.getTitle(), request.getId(), opts.getAppName(),
+            request.getFilters().length);
+        if (request.getTitle().endsWith("-cancel")) {
+          response.canceled();
+        } else if (request.getMode() == OPEN_FILES) {
+          response.results(path, 3);
+          for (int i = 0; i < 3; i++)
+            response.resultName("f" + i);
+        } else {
+          response.result(path);
+        }
+      } finally {
+        inFlight.decrementAndGet();
+      }
+    }
+  }
+
+  static final int[] MODES = {
+    DialogPeer.OPEN_FILE, DialogPeer.SAVE_FILE, DialogPeer.OPEN_FILES, DialogPeer.PICK_DIR
+  };
+
+  static final BetterFileDialog.Filter[] FILTERS = {
+    BetterFileDialog.IMAGE_FILTER, BetterFileDialog.TXT_FILTER,
+    BetterFileDialog.XML_FILTER, BetterFileDialog.ANY_FILTER
+  };
+
+  // Submit dialogs through manager from many threads at once, and check each
+  // result against what that thread asked for.
+  static void run(String name, DialogManager manager, DialogPeer backend,
+      boolean echoed) throws Exception {
+    int total = threads * perThread;
+    CountDownLatch go = new CountDownLatch(1);
+    CountDownLatch done = new CountDownLatch(total);
+    AtomicInteger canceled = new AtomicInteger();
+    ArrayList<Thread> submitters = new ArrayList<>();
+    for (int t = 0; t < threads; t++) {
+      int thread = t;
+      Thread th = new Thread(() -> {
+        Random rnd = new Random(thread);
+        try { go.await(); }
+        catch (InterruptedException e) { return; }
+        for (int i = 0; i < perThread; i++) {
+          int mode = MODES[rnd.nextInt(MODES.length)];
+          int nfilters = mode == DialogPeer.PICK_DIR ? 0 : rnd.nextInt(FILTERS.length + 1);
+          BetterFileDialog.Filter[] filters = new BetterFileDialog.Filter[nfilters];
+          System.arraycopy(FILTERS, 0, filters, 0, nfilters);
+          String title = "t" + thread + "-d" + i + (rnd.nextInt(8) == 0 ? "-cancel" : "");
+          String app = "App" + thread;
+          DialogOptions opts = DialogOptions.builder()
+              .title(title)
+              .filters(filters)
+              .appName(app)
+              .errorHandler((msg) -> fail(title + ": error " + msg))
+              .dialogPeer(backend)
+              .build();
+          CompletableFuture<DialogManager.Result> f;
+          try {
+            f = manager.submit(mode, null, (String)null, opts);
+          } catch (RuntimeException e) {
+            fail(title + ": submit threw " + e);
+            done.countDown();
+            continue;
+          }
+          f.whenComplete((r, e) -> {
+            try {
+              if (e != null)
+                fail(title + ": failed with " + e);
+              else if (r.getMode() != mode)
+                fail(title + ": mode " + r.getMode() + ", expected " + mode);
+              else if (r.isCanceled())
+                canceled.incrementAndGet();
+              else if (echoed)
+                check(title, app, nfilters, r);
+            } finally {
+              done.countDown();
+            }
+          });
+        }
+      }, "Stress Submitter " + t);
+      th.start();
+      submitters.add(th);
+    }
+
+    // Meanwhile, keep changing the static settings that options snapshot.
+    Thread mutator = new Thread(() -> {
+      int n = 0;
+      while (done.getCount() > 0) {
+        BetterFileDialog.appName = "Global" + (n++);
+        BetterFileDialog.errorHandler = (n % 2 == 0) ? null : (msg) -> { };
+        Thread.yield();
+      }
+    }, "Stress Mutator");
+
+    long t0 = System.nanoTime();
+    mutator.start();
+    go.countDown();
+    if (!done.await(120, TimeUnit.SECONDS))
+      fail(name + ": timed out with " + done.getCount() + " dialogs outstanding");
+    long ms = (System.nanoTime() - t0) / 1000000;
+    mutator.join();
+    for (Thread th : submitters)
+      th.join();
+    System.out.printf("%-10s %5d dialogs from %d threads in %5d ms (%.0f/s), %d canceled%n",
+        name, total, threads, ms, total * 1000.0 / Math.max(1, ms), canceled.get());
+    if (manager.getRunning() != 0 || manager.getQueued() != 0)
+      fail(name + ": manager still has " + manager.getRunning() + " running, " +
+          manager.getQueued() + " queued");
+  }
+
+  static void check(String title, String app, int nfilters, DialogManager.Result r) {
+    String expected = echo(title, r.getId(), app, nfilters);
+    if (title.endsWith("-cancel")) {
+      fail(title + ": expected cancel, got " + r);
+    } else if (r.getMode() == DialogPeer.OPEN_FILES) {
+      List<Path> paths = r.getPaths();
+      if (paths.size() != 3)
+        fail(title + ": " + paths.size() + " results");
+      for (int i = 0; i < paths.size(); i++)
+        if (!paths.get(i).equals(Paths.get(expected, "f" + i)))
+          fail(title + ": got " + paths.get(i) + ", expected under " + expected);
+    } else if (!r.getPath().equals(Paths.get(expected))) {
+      fail(title + ": got " + r.getPath() + ", expected " + expected);
+    }
+  }
+
+  public static void main(String[] args) throws Exception {
+    BetterFileDialog.traceBufferLevel = 3; // exercise the trace buffer too
+    DialogTrace.dumpOnError = false;
+
+    EchoDialogPeer echo = new EchoDialogPeer();
+    DialogManager manager = new DialogManager(concurrent);
+    run("echo", manager, echo, true);
+    if (echo.shown.get() != threads * perThread)
+      fail("echo: " + echo.shown.get() + " dialogs shown, expected " + threads * perThread);
+    if (echo.maxInFlight.get() > concurrent)
+      fail("echo: " + echo.maxInFlight.get() + " dialogs up at once, limit " + concurrent);
+    System.out.println("echo: at most " + echo.maxInFlight.get() + " dialogs up at once");
+
+    ScriptedDialogPeer scripted = new ScriptedDialogPeer()
+        .thenSelect(1, "/nonexistent/stress/a.txt")
+        .thenCancel(0)
+        .thenSelect(0, "/nonexistent/stress/b.txt", "/nonexistent/stress/c.txt");
+    run("scripted", new DialogManager(concurrent), scripted, false);
+    if (scripted.getShown() != threads * perThread)
+      fail("scripted: " + scripted.getShown() + " dialogs shown");
+
+    if (!failures.isEmpty()) {
+      System.out.println(failures.size() + " failures");
+      System.exit(1);
+    }
+    System.out.println("OK");
+  }
+
+}
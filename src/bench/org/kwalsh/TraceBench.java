@@ -0,0 +1,51 @@
+// TraceBench.java
+// Benchmarks for tracing: the cost of a trace point when tracing is off,
+// compared with building the message eagerly, and the cost of recording into
+// the DialogTrace ring buffer when it is on.
+
+package org.kwalsh;
+
+import static org.kwalsh.Bench.bench;
+
+class TraceBench {
+
+  static void run() throws Exception {
+    String line = "FilterPath=/home/someone/Pictures";
+    int saved = BetterFileDialog.traceLevel;
+    int savedBuffer = BetterFileDialog.traceBufferLevel;
+    try {
+      BetterFileDialog.traceLevel = 0;
+      BetterFileDialog.traceBufferLevel = 0;
+
+      bench("trace.disabled, concatenated x1000", () -> {
+        for (int i = 0; i < 1000; i++)
+          BetterFileDialog.trace(2, "Peer > " + line + " #" + i);
+        return 1000;
+      });
+
+      bench("trace.disabled, template x1000", () -> {
+        for (int i = 0; i < 1000; i++)
+          BetterFileDialog.trace(2, "Peer > {} #{}", line, i);
+        return 1000;
+      });
+
+      BetterFileDialog.traceBufferLevel = 2;
+
+      bench("trace.buffered, template x1000", () -> {
+        for (int i = 0; i < 1000; i++)
+          BetterFileDialog.trace(2, "Peer > {} #{}", line, i);
+        return 1000;
+      });
+
+      bench("trace.snapshot, " + DialogTrace.CAPACITY + " events", () -> {
+        Bench.sink += DialogTrace.snapshot().size();
+        return 1;
+      });
+    } finally {
+      BetterFileDialog.traceLevel = saved;
+      BetterFileDialog.traceBufferLevel = savedBuffer;
+      DialogTrace.clear();
+    }
+  }
+
+}
@@ -9,18 +9,41 @@ import java.awt.Point;
 import java.awt.Window;
 import java.io.BufferedReader;
 import java.io.File;
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.io.Reader;
+import java.lang.reflect.Method;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.Consumer;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 import javax.swing.JDialog;
 import javax.swing.JOptionPane;
-import javax.swing.JFileChooser;
 
 // New strategy: Multi-process
 //
@@ -77,25 +100,205 @@ public class BetterFileDialog {
 
   public static final String version = "2.0.0";
 
+  // The settings below can be changed from any thread. Each dialog takes a
+  // snapshot of them when it is created, see DialogOptions, so a change only
+  // affects dialogs created afterwards.
+
   // For debugging, zero means no printing, higher values yield more output.
-  public static int traceLevel = 0;
+  public static volatile int traceLevel = 0;
+
+  // Trace events up to this level are kept in memory, without printing them,
+  // and dumped if a dialog fails. Zero means nothing is kept. See DialogTrace.
+  public static volatile int traceBufferLevel = 0;
 
   // Application name, (unavoidably) shown in the SWT menubar.
-  public static String appName = null;
+  public static volatile String appName = null;
 
   // Application-specific error handler.
-  public static Consumer<String> errorHandler;
+  public static volatile Consumer<String> errorHandler;
+
+  // Resident mode: keep peer processes, each with its SWT Display, alive
+  // between dialogs rather than starting a new java process for every dialog.
+  // Each peer shows one dialog at a time, so up to maxResidentPeers are kept
+  // for dialogs that are open at the same time. Beyond that, extra dialogs get
+  // one-shot peers. A peer exits on its own after residentIdleTimeout
+  // milliseconds without any requests (zero means never), and is respawned on
+  // demand.
+  public static volatile boolean resident = false;
+  public static volatile long residentIdleTimeout = 5 * 60 * 1000;
+  public static volatile int maxResidentPeers = 1;
+
+  // Watchdog for peer processes: while we wait for it, a peer that hasn't
+  // created its SWT Display within peerStartupTimeout milliseconds of being
+  // started, or that goes silent for peerHeartbeatTimeout milliseconds (it
+  // sends a heartbeat every second while its dialog is up), is killed. The
+  // dialog then fails, reporting to errorHandler, and falls back to Swing.
+  // Zero disables a check. Peers still running when the application exits
+  // are killed by a shutdown hook.
+  public static volatile long peerStartupTimeout = 20000;
+  public static volatile long peerHeartbeatTimeout = 10000;
+
+  // Executor used for talking to peer processes. By default, this uses virtual
+  // threads on JDK 21 and later, and daemon platform threads otherwise.
+  public static volatile Executor executor = defaultExecutor();
+
+  // Backend that shows the dialogs. If null, native SWT dialogs are shown by a
+  // peer process. Whatever the backend, if it fails, a Swing JFileChooser is
+  // shown instead. See DialogPeer.
+  public static volatile DialogPeer dialogPeer = null;
+
+  // Prefetching: while a dialog is starting, list its initial directory on a
+  // background thread, so the listing is already in the OS caches when the
+  // dialog needs it. This helps most for home directories on NFS or SMB.
+  // PREFETCH_STAT also reads the attributes of each entry. Prefetching stops
+  // after prefetchTimeout milliseconds, or as soon as the dialog returns.
+  public static final int PREFETCH_NONE = 0;
+  public static final int PREFETCH_LIST = 1;
+  public static final int PREFETCH_STAT = 2;
+  public static volatile int prefetchInitialDir = PREFETCH_NONE;
+  public static volatile long prefetchTimeout = 3000;
+
+  protected static Executor defaultExecutor() {
+    try {
+      Method m = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+      return (Executor)m.invoke(null);
+    } catch (ReflectiveOperationException e) {
+      // JDK 20 or earlier, fall through
+    }
+    return Executors.newCachedThreadPool((r) -> {
+      Thread t = new Thread(r, "SWT Peer Thread");
+      t.setDaemon(true);
+      return t;
+    });
+  }
+
+  // Whether trace events at this level go anywhere. Callers can use this to
+  // skip work that is only needed for tracing.
+  protected static boolean tracing(int lvl) {
+    return traceLevel >= lvl || traceBufferLevel >= lvl;
+  }
 
   protected static void trace(int lvl, String msg) {
-    if (traceLevel >= lvl)
-      System.out.println("BetterFileDialog: " + msg);
+    if (tracing(lvl))
+      emit(lvl, msg, null);
+  }
+
+  // Template versions of trace(), where each "{}" is replaced by the next
+  // argument. Nothing is formatted unless tracing(lvl), but the arguments are
+  // still boxed and put in an array, so trace points that pass numbers are
+  // guarded with tracing(lvl), as are any that compute their arguments.
+  protected static void trace(int lvl, String template, Object arg) {
+    if (tracing(lvl))
+      emit(lvl, template, new Object[] { arg });
+  }
+
+  protected static void trace(int lvl, String template, Object arg1, Object arg2) {
+    if (tracing(lvl))
+      emit(lvl, template, new Object[] { arg1, arg2 });
+  }
+
+  protected static void trace(int lvl, Supplier<String> msg) {
+    if (tracing(lvl))
+      emit(lvl, msg.get(), null);
+  }
+
+  // Trace an event for a dialog with its own trace level, see DialogOptions.
+  // It is printed if either that or the global traceLevel is high enough.
+  protected static void traceAt(int dialogLevel, int lvl, String template, Object arg) {
+    if (dialogLevel >= lvl || tracing(lvl))
+      emit(lvl, template, new Object[] { arg }, Math.max(dialogLevel, traceLevel));
+  }
+
+  private static void emit(int lvl, String template, Object[] args) {
+    emit(lvl, template, args, traceLevel);
+  }
+
+  private static void emit(int lvl, String template, Object[] args, int printLevel) {
+    if (traceBufferLevel >= lvl)
+      DialogTrace.record(lvl, template, args);
+    if (printLevel >= lvl)
+      System.out.println("BetterFileDialog: " + DialogTrace.format(template, args));
   }
 
   protected static boolean isMacOS;
   protected static boolean isLinux;
   protected static boolean isWindows;
-  protected static String peerClassPath;
-  protected static String javaExePath;
+  protected static volatile String peerClassPath;
+  protected static volatile String javaExePath;
+  protected static volatile String peerSharedArchive; // AppCDS archive, if built
+  protected static volatile List<String> peerSharedArchiveOptions; // JVM options for it
+
+  // Use a class-data-sharing archive to speed up peer startup. The archive is
+  // built in the background by the first install(), and used by later peers.
+  public static volatile boolean useClassDataSharing = true;
+
+  // Launch peers from a trimmed-down Java runtime, built with jlink from the
+  // JDK the application runs on, rather than from that JDK itself. The runtime
+  // is built in the background by the first install(), which needs a JDK with
+  // jlink and its jmods, and takes a few seconds and ~55 MB of disk. It is used
+  // by later peers. Measured on Linux (JDK 17, 1 cpu) as below, in cpu time as
+  // wall time was too noisy to tell apart:
+  //   JVM defaults:                     ~280 ms cpu, 45.2 MB max RSS
+  //   JVM defaults + runtime:           ~260 ms cpu, 44.1 MB max RSS
+  //   peer profile + AppCDS:            ~200 ms cpu, 40.8 MB max RSS
+  //   peer profile + AppCDS + runtime:  ~185 ms cpu, 40.4 MB max RSS
+  public static volatile boolean usePeerRuntime = false;
+
+  // Talk to peers over a dedicated Unix-domain socket, rather than their stdin
+  // and stdout, where supported. Everything else a peer prints, e.g. GTK
+  // warnings or stack traces, is then drained on a separate thread, traced at
+  // level 1, and written to System.err only if the peer fails, rather than
+  // going straight to our stderr. See PeerChannel and PeerProcess.
+  public static volatile boolean usePeerControlChannel = false;
+
+  // Modules for the peer runtime. The peer needs only java.base, and so does
+  // SWT, apart from its SWT_AWT bridge, which the peer never uses.
+  protected static final String PEER_RUNTIME_MODULES = "java.base";
+
+  // JVM options for peer processes, tuned for a small process that shows a
+  // single dialog: a small heap, SerialGC, C1-only JIT with one compiler
+  // thread, smaller thread stacks, and no hsperfdata file. Measured on Linux
+  // (JDK 17, 1 cpu) launching the peer up to the point of creating a Display:
+  //   JVM defaults:          ~300 ms median, 43 MB max RSS
+  //   JVM defaults + AppCDS: ~210 ms median, 43 MB max RSS
+  //   this profile:          ~215 ms median, 39 MB max RSS
+  //   this profile + AppCDS: ~200 ms median, 39 MB max RSS
+  // The bigger win is in memory reserved, rather than touched, by each peer:
+  // the default heap and code cache limits scale with the host's memory.
+  public static final List<String> DEFAULT_PEER_JVM_OPTIONS = List.of(
+      "-Xms8m", "-Xmx64m",
+      "-XX:+UseSerialGC",
+      "-XX:TieredStopAtLevel=1", "-XX:CICompilerCount=1",
+      "-XX:ReservedCodeCacheSize=16m",
+      "-Xss512k",
+      "-XX:-UsePerfData");
+
+  private static volatile List<String> peerJvmOptions = DEFAULT_PEER_JVM_OPTIONS;
+
+  /**
+   * Replace the JVM options used for peer processes.
+   * @param options - the new options, e.g. "-Xmx128m". With no options, peers
+   *    get the JVM defaults.
+   */
+  public static void setPeerJvmOptions(String... options) {
+    peerJvmOptions = List.of(options);
+  }
+
+  /**
+   * Add to the JVM options used for peer processes. Later options generally
+   * override earlier ones, so this can also be used to adjust the defaults.
+   * @param options - the additional options, e.g. "-Xmx128m".
+   */
+  public static void addPeerJvmOptions(String... options) {
+    ArrayList<String> opts = new ArrayList<>(peerJvmOptions);
+    opts.addAll(Arrays.asList(options));
+    peerJvmOptions = List.copyOf(opts);
+  }
+
+  // Return the JVM options currently used for peer processes.
+  public static List<String> getPeerJvmOptions() {
+    return peerJvmOptions;
+  }
 
   static {
     isMacOS = System.getProperty("os.name").toLowerCase().startsWith("mac");
@@ -103,9 +306,9 @@ public class BetterFileDialog {
     isWindows = System.getProperty("os.name").toLowerCase().startsWith("windows");
   }
 
-  private static boolean installed = false;
-  private static boolean fallback = false;
-  private static Object lock = new Object();
+  private static volatile boolean installed = false;
+  private static volatile boolean fallback = false;
+  private static final Object lock = new Object();
   public static String install() {
     synchronized(lock) {
       if (installed)
@@ -115,38 +318,98 @@ public class BetterFileDialog {
         String sep = System.getProperty("path.separator");
         javaExePath = ProcessHandle.current().info().command().orElse("java");
 
-        // Get checksums for jars
-        HashMap<String, String> checksums = new HashMap<>();
-        String rsrc = "/bfd-swt-peer/sha256.txt";
-        try (InputStream is = BetterFileDialog.class.getResourceAsStream(rsrc);
-            Reader isr = new InputStreamReader(is);
-            BufferedReader r = new BufferedReader(isr)) {
-          r.lines().forEachOrdered((line) -> {
-            line = line.trim();
-            trace(4, "checksum " + line);
-            String[] parts = line.split("  ");
-            if (parts.length == 2)
-              checksums.put(parts[1], parts[0]);
-          });
-        }
+        HashMap<String, String> checksums = readChecksums();
         String bfd_jar = installJar("bfd-peer.jar", checksums);
-        String swt_jar;
+        String swt_name;
         if (isMacOS)
-          swt_jar = installJar("swt-macos.jar", checksums);
+          swt_name = "swt-macos.jar";
         else if (isWindows)
-          swt_jar = installJar("swt-windows.jar", checksums);
+          swt_name = "swt-windows.jar";
         else // linux
-          swt_jar = installJar("swt-linux.jar", checksums);
+          swt_name = "swt-linux.jar";
+        String swt_jar = installJar(swt_name, checksums);
         peerClassPath = swt_jar + sep + bfd_jar;
+        File destdir = new File(bfd_jar).getParentFile();
+        String bfdChecksum = checksums.get("bfd-swt-peer/bfd-peer.jar");
+        String swtChecksum = checksums.get("bfd-swt-peer/" + swt_name);
+        // The archive depends on which JVM runs the peer, so with a peer
+        // runtime, that takes care of the archive as well.
+        if (usePeerRuntime)
+          installPeerRuntime(destdir, bfdChecksum, swtChecksum);
+        else if (useClassDataSharing)
+          installSharedArchive(destdir, bfdChecksum, swtChecksum);
         return null;
       } catch (Throwable e) {
         fallback = true;
+        SwingDialogPeer.prebuild();
         e.printStackTrace();
         return e.getMessage();
       }
     }
   }
 
+  /**
+   * Prepare for dialogs ahead of time, so the first dialog appears quickly.
+   * This returns immediately, doing the work on a background thread. It is
+   * safe to open dialogs while warmup is still in progress, they just might not
+   * benefit from it.
+   * @param prespawn - if true, after installation, also launch a peer process
+   *    that waits for the next dialog request. In resident mode, this is the
+   *    resident peer. Otherwise, it is a spare peer used for the next dialog
+   *    only. Either way, it exits after residentIdleTimeout if not used.
+   * @return a future that completes with timing details once warmup is done.
+   */
+  public static CompletableFuture<WarmupReport> warmup(boolean prespawn) {
+    CompletableFuture<WarmupReport> done = new CompletableFuture<>();
+    Thread t = new Thread(() -> {
+      WarmupReport report = new WarmupReport();
+      try {
+        long t0 = System.nanoTime();
+        report.error = install();
+        long t1 = System.nanoTime();
+        report.installMillis = (t1 - t0) / 1000000;
+        if (report.error == null && prespawn && !fallback) {
+          PeerProcess p = spawnSparePeer();
+          long t2 = System.nanoTime();
+          report.spawnMillis = (t2 - t1) / 1000000;
+          if (p != null) {
+            p.awaitReady();
+            report.readyMillis = (System.nanoTime() - t2) / 1000000;
+          }
+        }
+      } catch (Exception e) {
+        report.error = e.getMessage();
+      }
+      trace(1, "Warmup: {}", report);
+      done.complete(report);
+    }, "BetterFileDialog Warmup");
+    t.setDaemon(true);
+    t.start();
+    return done;
+  }
+
+  /**
+   * Timing details for warmup(), in milliseconds. The spawn and ready times
+   * are -1 if no peer was launched.
+   */
+  public static final class WarmupReport {
+    // Time to extract or verify the platform-specific libraries.
+    public long installMillis = -1;
+    // Time to start the peer java process.
+    public long spawnMillis = -1;
+    // Time from starting the peer until it has created its SWT Display.
+    public long readyMillis = -1;
+    // Why warmup failed, or null on success.
+    public String error;
+
+    @Override
+    public String toString() {
+      return "install " + installMillis + " ms, spawn " + spawnMillis +
+        " ms, ready " + readyMillis + " ms" +
+        (error == null ? "" : ", error: " + error);
+    }
+  }
+
   protected static void ensureDir(File dir) throws Exception {
     if (!dir.exists()) {
       try {
@@ -163,6 +426,224 @@ public class BetterFileDialog {
     }
   }
 
+  // The AppCDS archive for the peer lives next to bfd-peer.jar, in
+  // ~/.swt/checksum/peer-key.jsa, where the key covers the JVM version and
+  // location along with the checksums of both jars. If any of those change, the
+  // name changes, so a stale archive is never used, and a new one is built. If
+  // the archive doesn't exist yet, a training run of the peer is started in the
+  // background to create it, and this dialog goes ahead without it.
+  //
+  // Applications sharing the same jars, but with different JVMs, peer options,
+  // or peer runtimes, each keep their own archive here. Each use of an archive
+  // updates its modification time, and only archives unused for
+  // STALE_ARCHIVE_MILLIS are deleted, so we never delete one that another
+  // application is still using, and so may be mapping.
+  protected static final long STALE_ARCHIVE_MILLIS = 30L * 24 * 60 * 60 * 1000;
+
+  protected static void installSharedArchive(File destdir, String bfdChecksum,
+      String swtChecksum) {
+    if (Runtime.version().feature() < 13)
+      return; // -XX:ArchiveClassesAtExit needs JDK 13 or later
+    String key;
+    try {
+      MessageDigest md = MessageDigest.getInstance("SHA-256");
+      // JVM options matter too, e.g. heap size affects compressed oops mode.
+      String id = System.getProperty("java.vm.version") + "\n" +
+        System.getProperty("java.home") + "\n" +
+        javaExePath + "\n" + bfdChecksum + "\n" + swtChecksum + "\n" +
+        String.join(" ", peerJvmOptions);
+      byte[] h = md.digest(id.getBytes(StandardCharsets.UTF_8));
+      key = toHex(Arrays.copyOf(h, 8));
+    } catch (Exception e) {
+      e.printStackTrace();
+      return;
+    }
+    File archive = new File(destdir, "peer-" + key + ".jsa");
+    if (archive.isFile()) {
+      trace(1, "Using class-data-sharing archive: {}", archive);
+      archive.setLastModified(System.currentTimeMillis()); // still in use
+      peerSharedArchiveOptions = peerJvmOptions;
+      peerSharedArchive = archive.getPath();
+      return;
+    }
+    String cp = peerClassPath;
+    List<String> opts = peerJvmOptions;
+    Thread t = new Thread(() -> trainSharedArchive(destdir, archive, cp, opts),
+        "BetterFileDialog CDS Training");
+    t.setDaemon(true);
+    t.start();
+  }
+
+  // This runs on a background thread. The archive is written under a temporary
+  // name then renamed into place, so a concurrent peer never sees a partial
+  // archive, and so two applications training at once don't collide.
+  protected static void trainSharedArchive(File destdir, File archive,
+      String cp, List<String> opts) {
+    long pid = ProcessHandle.current().pid();
+    File tmp = new File(destdir, archive.getName() + "." + pid + ".tmp");
+    ArrayList<String> cmd = new ArrayList<>();
+    cmd.add(javaExePath);
+    cmd.addAll(opts);
+    cmd.add("-XX:ArchiveClassesAtExit=" + tmp.getPath());
+    if (isMacOS)
+      cmd.add("-XstartOnFirstThread");
+    cmd.add("-cp");
+    cmd.add(cp);
+    cmd.add("org.kwalsh.BetterFileDialogPeer");
+    cmd.add("--cds-training");
+    cmd.add("true");
+    trace(1, "Building class-data-sharing archive: {}", archive);
+    trace(2, () -> "Training: " + String.join(" ", cmd));
+    try {
+      ProcessBuilder pb = new ProcessBuilder(cmd);
+      pb.redirectErrorStream(true);
+      pb.redirectOutput(ProcessBuilder.Redirect.DISCARD);
+      Process p = pb.start();
+      int status = p.waitFor();
+      if (status != 0 || !tmp.isFile())
+        throw new Exception("training run failed with status " + status);
+      Files.move(tmp.toPath(), archive.toPath(),
+          StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+      // Archives nobody has used in a long while are likely for old JVMs.
+      long cutoff = System.currentTimeMillis() - STALE_ARCHIVE_MILLIS;
+      File[] old = destdir.listFiles((d, n) ->
+          n.startsWith("peer-") && n.endsWith(".jsa") && !n.equals(archive.getName()));
+      if (old != null)
+        for (File f : old)
+          if (f.lastModified() < cutoff)
+            f.delete();
+      peerSharedArchiveOptions = opts;
+      peerSharedArchive = archive.getPath();
+      trace(1, "Built class-data-sharing archive: {}", archive);
+    } catch (Exception e) {
+      trace(1, "Can't build class-data-sharing archive: {}", e.getMessage());
+      tmp.delete();
+    }
+  }
+
+  // The peer runtime lives next to bfd-peer.jar, in
+  // ~/.swt/checksum/peer-runtime-key/, where the key covers the JVM version and
+  // location, and the modules. If it exists, peers are launched from it, and
+  // its AppCDS archive is set up as usual. If not, it is built in the
+  // background, and until then peers are launched from this JVM, without an
+  // archive. If it can't be built, e.g. because this JVM has no jlink, peers
+  // just carry on with this JVM. Runtimes for other JVMs are left alone, as
+  // another application might still be using one.
+  protected static void installPeerRuntime(File destdir, String bfdChecksum,
+      String swtChecksum) {
+    String key;
+    try {
+      MessageDigest md = MessageDigest.getInstance("SHA-256");
+      String id = System.getProperty("java.vm.version") + "\n" +
+        System.getProperty("java.home") + "\n" + PEER_RUNTIME_MODULES;
+      byte[] h = md.digest(id.getBytes(StandardCharsets.UTF_8));
+      key = toHex(Arrays.copyOf(h, 8));
+    } catch (Exception e) {
+      e.printStackTrace();
+      return;
+    }
+    File image = new File(destdir, "peer-runtime-" + key);
+    String exe = isWindows ? "java.exe" : "java";
+    File java = new File(new File(image, "bin"), exe);
+    if (java.canExecute()) {
+      trace(1, "Using peer runtime: {}", image);
+      javaExePath = java.getPath();
+      if (useClassDataSharing)
+        installSharedArchive(destdir, bfdChecksum, swtChecksum);
+      return;
+    }
+    Thread t = new Thread(() -> {
+      if (buildPeerRuntime(destdir, image, exe))
+        javaExePath = java.getPath();
+      if (useClassDataSharing)
+        installSharedArchive(destdir, bfdChecksum, swtChecksum);
+    }, "BetterFileDialog Runtime Build");
+    t.setDaemon(true);
+    t.start();
+  }
+
+  // This runs on a background thread. As for the archive, the runtime is built
+  // under a temporary name then renamed into place, so a peer never sees a
+  // partial runtime. Compressing it would save disk, but cost the peer time
+  // decompressing classes. With JDK 17, jlink can't create the default CDS
+  // archive, without which the runtime would start slower than this JVM, so
+  // that is created by the runtime itself.
+  protected static boolean buildPeerRuntime(File destdir, File image, String exe) {
+    long pid = ProcessHandle.current().pid();
+    File tmp = new File(destdir, image.getName() + "." + pid + ".tmp");
+    File jlink = new File(new File(System.getProperty("java.home"), "bin"),
+        isWindows ? "jlink.exe" : "jlink");
+    trace(1, "Building peer runtime: {}", image);
+    try {
+      if (!jlink.canExecute())
+        throw new Exception("no jlink in " + System.getProperty("java.home"));
+      deleteTree(tmp.toPath());
+      run(jlink.getPath(),
+          "--add-modules", PEER_RUNTIME_MODULES,
+          "--strip-debug", "--no-header-files", "--no-man-pages",
+          "--output", tmp.getPath());
+      run(new File(new File(tmp, "bin"), exe).getPath(), "-Xshare:dump");
+      try {
+        Files.move(tmp.toPath(), image.toPath(), StandardCopyOption.ATOMIC_MOVE);
+      } catch (IOException e) {
+        if (!image.isDirectory())
+          throw e;
+        deleteTree(tmp.toPath()); // another application got there first
+      }
+      trace(1, "Built peer runtime: {}", image);
+      return true;
+    } catch (Exception e) {
+      trace(1, "Can't build peer runtime: {}", e.getMessage());
+      try {
+        deleteTree(tmp.toPath());
+      } catch (IOException e2) {
+        e2.printStackTrace();
+      }
+      return false;
+    }
+  }
+
+  // Run a command to completion, discarding its output.
+  private static void run(String... cmd) throws Exception {
+    trace(2, () -> "Running: " + String.join(" ", cmd));
+    ProcessBuilder pb = new ProcessBuilder(cmd);
+    pb.redirectErrorStream(true);
+    pb.redirectOutput(ProcessBuilder.Redirect.DISCARD);
+    int status = pb.start().waitFor();
+    if (status != 0)
+      throw new Exception(new File(cmd[0]).getName() + " failed with status " + status);
+  }
+
+  protected static void deleteTree(Path dir) throws IOException {
+    if (!Files.exists(dir, LinkOption.NOFOLLOW_LINKS))
+      return;
+    List<Path> paths;
+    try (Stream<Path> s = Files.walk(dir)) {
+      paths = s.sorted(Comparator.reverseOrder()).collect(Collectors.toList());
+    }
+    for (Path p : paths) // children before parents
+      Files.delete(p);
+  }
+
+  // Get checksums for the bundled jars, keyed by path within the client jar,
+  // e.g. "bfd-swt-peer/bfd-peer.jar".
+  protected static HashMap<String, String> readChecksums() throws IOException {
+    HashMap<String, String> checksums = new HashMap<>();
+    String rsrc = "/bfd-swt-peer/sha256.txt";
+    try (InputStream is = BetterFileDialog.class.getResourceAsStream(rsrc);
+        Reader isr = new InputStreamReader(is);
+        BufferedReader r = new BufferedReader(isr)) {
+      r.lines().forEachOrdered((line) -> {
+        line = line.trim();
+        trace(4, "checksum {}", line);
+        String[] parts = line.split("  ");
+        if (parts.length == 2)
+          checksums.put(parts[1], parts[0]);
+      });
+    }
+    return checksums;
+  }
+
   protected static String installJar(String jarname, HashMap<String, String> checksums) throws Exception {
     // First, see if jar is already on classpath
     // String[] paths = System.getProperty("java.class.path").split(File.pathSeparator);
@@ -181,30 +662,125 @@ public class BetterFileDialog {
     File swtdir = new File(System.getProperty("user.home"), ".swt");
     File destdir = new File(swtdir, checksum);
     File dest = new File(destdir, jarname);
-    if (dest.exists()) {
-      trace(1, "Loading platform-specific library: " + dest.getPath());
-    } else {
-      trace(1, "Installing platform-specific library: " + dest.getPath());
-      // Create the ~/.swt directory and ~/.swt/checksum/ directory if needed
-      // but don't try to create ~ or anything above it.
-      ensureDir(swtdir);
-      ensureDir(destdir);
-      // Extract the library to ~/.swt/checksum/
-      String rsrc = "/bfd-swt-peer/" + jarname;
-      try (InputStream inputStream = BetterFileDialog.class.getResourceAsStream(rsrc)) {
-        if (inputStream == null) {
-          throw new Exception("Required platform-specific library missing: " + rsrc);
+    if (isVerified(dest, checksum)) {
+      trace(1, "Loading platform-specific library: {}", dest);
+      return dest.getPath();
+    }
+
+    // Create the ~/.swt directory and ~/.swt/checksum/ directory if needed
+    // but don't try to create ~ or anything above it.
+    ensureDir(swtdir);
+    ensureDir(destdir);
+
+    // Other applications using BetterFileDialog might be installing the same
+    // jar right now, so hold a lock on the checksum directory while checking
+    // and extracting.
+    File lockFile = new File(destdir, ".lock");
+    try (FileChannel ch = FileChannel.open(lockFile.toPath(),
+          StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+      FileLock fl = ch.lock();
+      try {
+        if (isVerified(dest, checksum)) {
+          trace(1, "Loading platform-specific library: {}", dest);
+        } else {
+          trace(1, "Installing platform-specific library: {}", dest);
+          extractJar(jarname, checksum, dest);
         }
-        Files.copy(inputStream, dest.toPath(), StandardCopyOption.REPLACE_EXISTING);
-      } catch (Throwable e) {
-        e.printStackTrace();
-        throw new Exception("Can't install platform-specific library to " + dest.getPath() + "\n" + e.toString());
+      } finally {
+        fl.release();
       }
+    } catch (Exception e) {
+      e.printStackTrace();
+      throw new Exception("Can't install platform-specific library to " + dest.getPath() + "\n" + e.toString());
     }
 
     return dest.getPath();
   }
 
+  // Extract the library to ~/.swt/checksum/, via a temporary file that is
+  // renamed into place only once its checksum has been confirmed. The caller
+  // must hold the lock for the checksum directory.
+  protected static void extractJar(String jarname, String checksum, File dest) throws Exception {
+    String rsrc = "/bfd-swt-peer/" + jarname;
+    Path tmp = Files.createTempFile(dest.getParentFile().toPath(), jarname, ".tmp");
+    try {
+      MessageDigest md = MessageDigest.getInstance("SHA-256");
+      try (InputStream is = BetterFileDialog.class.getResourceAsStream(rsrc)) {
+        if (is == null)
+          throw new Exception("Required platform-specific library missing: " + rsrc);
+        try (DigestInputStream dis = new DigestInputStream(is, md)) {
+          Files.copy(dis, tmp, StandardCopyOption.REPLACE_EXISTING);
+        }
+      }
+      String actual = toHex(md.digest());
+      if (!actual.equals(checksum))
+        throw new Exception("Checksum mismatch for " + rsrc + ": " + actual);
+      Files.move(tmp, dest.toPath(),
+          StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    } finally {
+      Files.deleteIfExists(tmp);
+    }
+    writeStamp(dest, checksum);
+  }
+
+  // Check whether an installed jar is intact. Hashing a multi-megabyte jar on
+  // every launch would be wasteful, so once a jar has been hashed, its size and
+  // modification time are recorded in a ".verified" stamp file next to it, and
+  // later checks just compare those.
+  protected static boolean isVerified(File dest, String checksum) {
+    BasicFileAttributes attrs;
+    try {
+      attrs = Files.readAttributes(dest.toPath(), BasicFileAttributes.class);
+    } catch (IOException e) {
+      return false; // not installed
+    }
+    String stamp = attrs.size() + " " + attrs.lastModifiedTime().toMillis() + " " + checksum;
+    File stampFile = new File(dest.getPath() + ".verified");
+    try {
+      if (stamp.equals(Files.readString(stampFile.toPath()).trim()))
+        return true;
+    } catch (IOException e) {
+      // no stamp yet, fall through
+    }
+    try {
+      MessageDigest md = MessageDigest.getInstance("SHA-256");
+      try (InputStream is = Files.newInputStream(dest.toPath());
+          DigestInputStream dis = new DigestInputStream(is, md)) {
+        dis.transferTo(OutputStream.nullOutputStream());
+      }
+      if (!toHex(md.digest()).equals(checksum)) {
+        trace(1, "Corrupt platform-specific library: {}", dest);
+        return false;
+      }
+      writeStamp(dest, checksum);
+      return true;
+    } catch (Exception e) {
+      e.printStackTrace();
+      return false;
+    }
+  }
+
+  protected static void writeStamp(File dest, String checksum) {
+    try {
+      BasicFileAttributes attrs = Files.readAttributes(dest.toPath(), BasicFileAttributes.class);
+      String stamp = attrs.size() + " " + attrs.lastModifiedTime().toMillis() + " " + checksum;
+      Path tmp = Files.createTempFile(dest.getParentFile().toPath(), dest.getName(), ".tmp");
+      Files.writeString(tmp, stamp);
+      Files.move(tmp, Paths.get(dest.getPath() + ".verified"),
+          StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    } catch (IOException e) {
+      // Not fatal, the jar will just be hashed again next time.
+      trace(1, "Can't record verification of {}: {}", dest, e);
+    }
+  }
+
+  protected static String toHex(byte[] b) {
+    StringBuilder sb = new StringBuilder(b.length * 2);
+    for (byte x : b)
+      sb.append(String.format("%02x", x));
+    return sb.toString();
+  }
+
   /**
    * Pop up an open-file dialog and return the selected file.
    * @param parent - used for dialog positioning on Windows and Linux. May be
@@ -242,6 +818,13 @@ public class BetterFileDialog {
     dlg.exec();
     return dlg.fileResult;
   }
+  public static Path openFile(Component parent, String title,
+      Path initialPath, Filter... filters) {
+    BetterFileDialog dlg = new BetterFileDialog(MODE_OPEN, parent, title,
+        toString(initialPath), filters);
+    dlg.exec();
+    return toPath(dlg.fileResult);
+  }
 
   /**
    * Same as openFile(), but allows selecting multiple files.
@@ -252,31 +835,21 @@ public class BetterFileDialog {
     BetterFileDialog dlg = new BetterFileDialog(MODE_MULTI, parent, title,
         toString(initialPath), filters);
     dlg.exec();
-    int n = dlg.multiResult == null ? 0 : dlg.multiResult.length;
-    if (n == 0)
-      return null;
-    File[] ret = new File[n];
-    for (int i = 0; i < n; i++) {
-      // Quirk: multiResult gives relative file names only, we need
-      // to add the directory part.
-      ret[i] = new File(dlg.dirResult, dlg.multiResult[i]); // should not be null
-    }
-    return ret;
+    return dlg.multiFileResult();
   }
   public static String[] openFiles(Component parent, String title,
       String initialPath, Filter... filters) {
     BetterFileDialog dlg = new BetterFileDialog(MODE_MULTI, parent, title,
         initialPath, filters);
     dlg.exec();
-    int n = dlg.multiResult == null ? 0 : dlg.multiResult.length;
-    if (n == 0)
-      return null;
-    // Quirk: multiResult gives relative file names only, we need
-    // to add the directory part.
-    String[] paths = dlg.multiResult;
-    for (int i = 0; i < n; i++)
-      paths[i] = new File(dlg.dirResult, paths[i]).getPath();
-    return paths;
+    return dlg.multiPathResult();
+  }
+  public static Path[] openFiles(Component parent, String title,
+      Path initialPath, Filter... filters) {
+    BetterFileDialog dlg = new BetterFileDialog(MODE_MULTI, parent, title,
+        toString(initialPath), filters);
+    dlg.exec();
+    return dlg.multiPathArray();
   }
 
   /**
@@ -310,6 +883,13 @@ public class BetterFileDialog {
     dlg.exec();
     return dlg.fileResult;
   }
+  public static Path saveFile(Component parent, String title,
+      Path initialPath, Filter... filters) {
+    BetterFileDialog dlg = new BetterFileDialog(MODE_SAVE, parent, title,
+        toString(initialPath), filters);
+    dlg.exec();
+    return toPath(dlg.fileResult);
+  }
 
   /**
    * Pop up a select-directory dialog and return the selected directory.
@@ -332,6 +912,203 @@ public class BetterFileDialog {
     dlg.exec();
     return dlg.dirResult;
   }
+  public static Path pickDir(Component parent, String title, Path initialDir) {
+    BetterFileDialog dlg = new BetterFileDialog(MODE_DIR, parent, title,
+        toString(initialDir), null);
+    dlg.exec();
+    return toPath(dlg.dirResult);
+  }
+
+  /**
+   * Asynchronous versions of openFile(), openFiles(), saveFile(), and
+   * pickDir(). These return immediately, without blocking or parking the
+   * calling thread, and without making the application modal. The peer process
+   * is handled on the executor. The future completes with the same result the
+   * synchronous version would return, including null if canceled by user. Any
+   * follow-up prompts, e.g. to confirm overwriting a file, or the Swing
+   * fallback dialogs, are shown from the AWT/Swing thread.
+   */
+  public static CompletableFuture<File> openFileAsync(Component parent,
+      String title, File initialPath, Filter... filters) {
+    BetterFileDialog dlg = new BetterFileDialog(MODE_OPEN, parent, title,
+        toString(initialPath), filters);
+    return dlg.execAsync(() -> toFile(dlg.fileResult));
+  }
+  public static CompletableFuture<String> openFileAsync(Component parent,
+      String title, String initialPath, Filter... filters) {
+    BetterFileDialog dlg = new BetterFileDialog(MODE_OPEN, parent, title,
+        initialPath, filters);
+    return dlg.execAsync(() -> dlg.fileResult);
+  }
+  public static CompletableFuture<Path> openFileAsync(Component parent,
+      String title, Path initialPath, Filter... filters) {
+    BetterFileDialog dlg = new BetterFileDialog(MODE_OPEN, parent, title,
+        toString(initialPath), filters);
+    return dlg.execAsync(() -> toPath(dlg.fileResult));
+  }
+
+  public static CompletableFuture<File[]> openFilesAsync(Component parent,
+      String title, File initialPath, Filter... filters) {
+    BetterFileDialog dlg = new BetterFileDialog(MODE_MULTI, parent, title,
+        toString(initialPath), filters);
+    return dlg.execAsync(() -> dlg.multiFileResult());
+  }
+  public static CompletableFuture<String[]> openFilesAsync(Component parent,
+      String title, String initialPath, Filter... filters) {
+    BetterFileDialog dlg = new BetterFileDialog(MODE_MULTI, parent, title,
+        initialPath, filters);
+    return dlg.execAsync(() -> dlg.multiPathResult());
+  }
+  public static CompletableFuture<Path[]> openFilesAsync(Component parent,
+      String title, Path initialPath, Filter... filters) {
+    BetterFileDialog dlg = new BetterFileDialog(MODE_MULTI, parent, title,
+        toString(initialPath), filters);
+    return dlg.execAsync(() -> dlg.multiPathArray());
+  }
+
+  public static CompletableFuture<File> saveFileAsync(Component parent,
+      String title, File initialPath, Filter... filters) {
+    BetterFileDialog dlg = new BetterFileDialog(MODE_SAVE, parent, title,
+        toString(initialPath), filters);
+    return dlg.execAsync(() -> toFile(dlg.fileResult));
+  }
+  public static CompletableFuture<String> saveFileAsync(Component parent,
+      String title, String initialPath, Filter... filters) {
+    BetterFileDialog dlg = new BetterFileDialog(MODE_SAVE, parent, title,
+        initialPath, filters);
+    return dlg.execAsync(() -> dlg.fileResult);
+  }
+  public static CompletableFuture<Path> saveFileAsync(Component parent,
+      String title, Path initialPath, Filter... filters) {
+    BetterFileDialog dlg = new BetterFileDialog(MODE_SAVE, parent, title,
+        toString(initialPath), filters);
+    return dlg.execAsync(() -> toPath(dlg.fileResult));
+  }
+
+  public static CompletableFuture<File> pickDirAsync(Component parent,
+      String title, File initialDir) {
+    BetterFileDialog dlg = new BetterFileDialog(MODE_DIR, parent, title,
+        toString(initialDir), null);
+    return dlg.execAsync(() -> toFile(dlg.dirResult));
+  }
+  public static CompletableFuture<String> pickDirAsync(Component parent,
+      String title, String initialDir) {
+    BetterFileDialog dlg = new BetterFileDialog(MODE_DIR, parent, title,
+        initialDir, null);
+    return dlg.execAsync(() -> dlg.dirResult);
+  }
+  public static CompletableFuture<Path> pickDirAsync(Component parent,
+      String title, Path initialDir) {
+    BetterFileDialog dlg = new BetterFileDialog(MODE_DIR, parent, title,
+        toString(initialDir), null);
+    return dlg.execAsync(() -> toPath(dlg.dirResult));
+  }
+
+  /**
+   * Same as openFiles(), but returns the chosen files as a compact, read-only
+   * list that only combines each name with the chosen directory when that
+   * element is accessed. This is much cheaper for very large selections.
+   * @return the list of one or more chosen files, or null if canceled by user.
+   */
+  public static List<Path> openFileList(Component parent, String title,
+      File initialPath, Filter... filters) {
+    BetterFileDialog dlg = new BetterFileDialog(MODE_MULTI, parent, title,
+        toString(initialPath), filters);
+    dlg.exec();
+    return dlg.multiPathList();
+  }
+  public static List<Path> openFileList(Component parent, String title,
+      Path initialPath, Filter... filters) {
+    return openFileList(parent, title, toFile(toString(initialPath)), filters);
+  }
+
+  /**
+   * Same as openFiles(), but hands each chosen file to a consumer as soon as it
+   * arrives from the dialog, rather than collecting them all first. The
+   * consumer is called in order, from a background thread, and all calls
+   * happen before this method returns. If the consumer throws an exception, no
+   * more files are passed to it, and the exception is rethrown from here once
+   * the dialog is done. If the native dialog fails and the Swing fallback is
+   * used instead, its results are passed to the consumer once it closes.
+   * Files are only passed on once the user has confirmed the selection, but
+   * the native dialog could still fail partway through passing them. In that
+   * case the consumer has been given only some of the chosen files, so there
+   * is no fallback, and an IllegalStateException is thrown from here instead.
+   * @return the number of files chosen, or -1 if canceled by user.
+   */
+  public static int streamFiles(Component parent, String title,
+      File initialPath, Consumer<? super Path> consumer, Filter... filters) {
+    BetterFileDialog dlg = new BetterFileDialog(MODE_MULTI, parent, title,
+        toString(initialPath), filters);
+    dlg.streamConsumer = consumer;
+    dlg.exec();
+    List<Path> list = dlg.multiPathList();
+    if (list != null && dlg.streamFailure == null) {
+      // Anything not streamed from the peer, e.g. from the Swing fallback.
+      for (int i = dlg.streamed; i < list.size(); i++)
+        consumer.accept(list.get(i));
+    }
+    if (dlg.streamFailure != null)
+      throw dlg.streamFailure;
+    return list == null ? -1 : list.size();
+  }
+  public static int streamFiles(Component parent, String title,
+      Path initialPath, Consumer<? super Path> consumer, Filter... filters) {
+    return streamFiles(parent, title, toFile(toString(initialPath)), consumer, filters);
+  }
+
+  // Quirk: multiResult mostly gives relative file names, we need to add the
+  // directory part. Absolute paths among them are kept as they are, see
+  // PathList.
+  protected List<Path> multiPathList() {
+    int n = multiResult == null ? 0 : multiResult.length;
+    if (n == 0)
+      return null;
+    return new PathList(dirResult, multiResult);
+  }
+  protected Path[] multiPathArray() {
+    List<Path> list = multiPathList();
+    return list == null ? null : list.toArray(new Path[0]);
+  }
+  protected File[] multiFileResult() {
+    List<Path> list = multiPathList();
+    if (list == null)
+      return null;
+    File[] ret = new File[list.size()];
+    for (int i = 0; i < ret.length; i++)
+      ret[i] = list.get(i).toFile();
+    return ret;
+  }
+  protected String[] multiPathResult() {
+    List<Path> list = multiPathList();
+    if (list == null)
+      return null;
+    String[] paths = new String[list.size()];
+    for (int i = 0; i < paths.length; i++)
+      paths[i] = list.get(i).toString();
+    return paths;
+  }
+
+  // For streamFiles(), results are passed to this as they arrive. Backends on
+  // the AWT/Swing thread are not streamed, see streamFiles().
+  protected Consumer<? super Path> streamConsumer;
+  protected Path streamDir; // for the current backend
+  protected int streamed; // results passed to streamConsumer by this backend
+  protected RuntimeException streamFailure;
+
+  // This must be called from background thread.
+  protected void stream(String name) {
+    if (streamConsumer == null || streamFailure != null || backend.usesAWTThread())
+      return;
+    try {
+      if (streamDir == null)
+        streamDir = Paths.get(peerResultDir);
+      streamConsumer.accept(streamDir.resolve(name));
+      streamed++;
+    } catch (RuntimeException e) {
+      streamFailure = e;
+    }
+  }
 
   protected String dirResult;
   protected String fileResult;
@@ -349,6 +1126,17 @@ public class BetterFileDialog {
   protected String title;
   protected String initialPath;
   protected Filter[] filters;
+  protected final DialogOptions options;
+
+  // Each dialog gets a unique id, for telling concurrent dialogs apart.
+  private static final AtomicLong nextId = new AtomicLong();
+  protected final long id = nextId.incrementAndGet();
+
+  // Timings for DialogMetrics, see measure().
+  protected final long startNanos = System.nanoTime();
+  protected final long[] phaseNanos = DialogMetrics.newTimings();
+  protected long shownNanos, closedNanos;
+  private boolean recorded;
 
   protected Component awtParent;
   protected Point loc;
@@ -357,11 +1145,18 @@ public class BetterFileDialog {
 
   protected BetterFileDialog(int mode, Component parent,
       String title, String initialPath, Filter[] filters) {
+    this(mode, parent, initialPath,
+        DialogOptions.builder().title(title).filters(filters).build());
+  }
+
+  protected BetterFileDialog(int mode, Component parent,
+      String initialPath, DialogOptions options) {
     this.mode = mode;
-    this.title = title;
+    this.options = options;
+    this.title = options.getTitle();
     this.awtParent = parent;
     this.initialPath = initialPath;
-    this.filters = filters;
+    this.filters = options.filters();
     this.awtBlockerIsVisible = new CountDownLatch(1);
 
     if (awtParent != null) {
@@ -369,16 +1164,30 @@ public class BetterFileDialog {
       Dimension d = awtParent.getSize();
       loc.x += d.width/2;
       loc.y += d.height/2;
-      trace(3, "Centering over parent at " + loc);
+      trace(3, "Centering over parent at {}", loc);
     }
   }
 
+  // The backend to use for this dialog.
+  protected DialogPeer chooseBackend() {
+    DialogPeer p = options.getDialogPeer();
+    if (p != null)
+      return p;
+    return fallback ? SwingDialogPeer.INSTANCE : SwtDialogPeer.INSTANCE;
+  }
+
   protected void exec() {
-    if (fallback) {
-      doSwingDialogFallback();
+    backend = chooseBackend();
+    if (backend.usesAWTThread()) {
+      if (EventQueue.isDispatchThread()) {
+        runOnAWT();
+      } else {
+        try { EventQueue.invokeAndWait(() -> runOnAWT()); }
+        catch (Exception e) { e.printStackTrace(); }
+      }
     } else {
-      // SWT half
-      new Thread(() -> execSWTPeer()).start();
+      // Backend half
+      executor.execute(() -> execBackend());
 
       // AWT half
       if (EventQueue.isDispatchThread()) {
@@ -388,9 +1197,67 @@ public class BetterFileDialog {
         catch (Exception e) { e.printStackTrace(); }
       }
     }
+    recordMetrics();
+  }
+
+  // This must run on the AWT/Swing thread, for backends that need it.
+  protected void runOnAWT() {
+    runBackend();
+    finishOnAWT();
   }
 
-  protected Process peer;
+  // Record the time since t as the duration of a phase, and return the current
+  // time.
+  protected long measure(int phase, long t) {
+    long now = System.nanoTime();
+    phaseNanos[phase] = now - t;
+    return now;
+  }
+
+  // Add this dialog's timings to DialogMetrics, once it has a result.
+  protected void recordMetrics() {
+    if (recorded)
+      return;
+    recorded = true;
+    measure(DialogMetrics.TOTAL, startNanos);
+    DialogMetrics.record(PROMPTS[mode], backend.name(), phaseNanos);
+  }
+
+  protected <T> CompletableFuture<T> execAsync(Supplier<T> result) {
+    CompletableFuture<T> done = new CompletableFuture<>();
+    Runnable finish = () -> {
+      recordMetrics();
+      try { done.complete(result.get()); }
+      catch (Throwable e) { done.completeExceptionally(e); }
+    };
+    backend = chooseBackend();
+    if (backend.usesAWTThread()) {
+      EventQueue.invokeLater(() -> {
+        runOnAWT();
+        finish.run();
+      });
+      return done;
+    }
+    try {
+      executor.execute(() -> {
+        runBackend();
+        if (needsAWTToFinish()) {
+          EventQueue.invokeLater(() -> {
+            finishOnAWT();
+            finish.run();
+          });
+        } else {
+          finish.run();
+        }
+      });
+    } catch (Throwable e) {
+      done.completeExceptionally(e);
+    }
+    return done;
+  }
+
+  protected DialogPeer backend;
+  protected final Session session = new Session();
   protected String peerError;
   protected String peerResultDir;
   protected String[] peerResults = new String[1];
@@ -399,47 +1266,87 @@ public class BetterFileDialog {
   protected boolean peerCheckedOverwrite = false;
   protected String peerSuggestsExtension;
 
+  // Forget the outcome reported by a backend, before trying another.
+  protected void resetResults() {
+    peerError = null;
+    peerResultDir = null;
+    peerResults = new String[1];
+    peerCountLeft = 1;
+    peerCanceled = false;
+    peerCheckedOverwrite = false;
+    peerSuggestsExtension = null;
+    shownNanos = closedNanos = 0;
+    fileResult = dirResult = null;
+    multiResult = null;
+    streamDir = null;
+    streamed = 0;
+  }
+
   // This must be called from background thread.
-  protected void execSWTPeer() {
-    Thread.currentThread().setName("SWT Peer Thread ");
+  protected void execBackend() {
+    runBackend();
+
+    // Ensure awtBlocker is visible...
+    try { awtBlockerIsVisible.await(); }
+    catch (Exception e) { e.printStackTrace(); } // what to do here?
+
+    // ... then hide it to notify AWT/Swing thread that result is ready.
+    EventQueue.invokeLater(() -> {
+      awtBlocker.setVisible(false);
+      if (isWindows) {
+        // On Windows, when the popup is closed, focus is entirely lost from
+        // the application, and some other app is brought to the front. If we
+        // have a parent, try to bring it to the front.
+        if (awtParent != null)
+          awtParent.requestFocus();
+      }
+    });
+
+  }
+
+  // This runs the backend and collects its results, but doesn't show anything
+  // else on the AWT/Swing side. It must be called from a background thread,
+  // unless the backend uses the AWT/Swing thread.
+  protected void runBackend() {
+    if (!backend.usesAWTThread())
+      Thread.currentThread().setName("Dialog Peer Thread (" + backend.name() + " #" + id + ")");
+    if (tracing(2))
+      trace(2, "Dialog #{} using {}", id, backend.name());
+    DirPrefetch prefetch = prefetchInitialDir == PREFETCH_NONE ? null :
+        DirPrefetch.start(initialPath, prefetchInitialDir == PREFETCH_STAT, prefetchTimeout);
     try {
-      openSWTPeer();
-      readSWTPeer();
+      backend.show(session, session);
     } catch (Exception e) {
       peerError = "Exception: " + e.getMessage();
       e.printStackTrace();
     } finally {
-      if (peer != null) {
-        peer.destroy();
-        peer = null;
-      }
+      if (prefetch != null)
+        prefetch.cancel();
     }
+    if (closedNanos != 0)
+      measure(DialogMetrics.RESULT, closedNanos);
 
-    // Process results from peer.
+    // Process results from backend.
     if (peerError != null) {
-      trace(1, "Failed due to " + peerError);
+      trace(1, "Failed due to {}", peerError);
     } else if (peerCanceled) {
       // do nothing
       trace(1, "Canceled by user");
     } else if (peerCountLeft != 0) {
-      trace(1, "Missing " + peerCountLeft +
-            " of " + peerResults.length + " results");
+      trace(1, "Missing {} of {} results", peerCountLeft, peerResults.length);
       peerError = "Missing " + peerCountLeft + " of " + peerResults.length + " results from peer.";
     } else if (peerResults.length == 0) {
       trace(1, "Empty results.");
       peerError = "Empty results from peer.";
     } else if (mode == MODE_OPEN || mode == MODE_SAVE) {
       if (peerResults.length != 1) {
-        trace(1, "Wanted 1 result but got " + peerResults.length);
+        trace(1, "Wanted 1 result but got {}", peerResults.length);
         peerError = "Multiple results from peer.";
       } else {
         fileResult = peerResults[0];
       }
     } else if (mode == MODE_MULTI) {
-      if (peerResults.length != 1) {
-        trace(1, "Wanted 1 result but got " + peerResults.length);
-        peerError = "Multiple results from peer.";
-      } else if (peerResultDir == null) {
+      if (peerResultDir == null) {
         trace(1, "Missing result directory");
         peerError = "Missing result directory from peer.";
       } else {
@@ -448,44 +1355,112 @@ public class BetterFileDialog {
       }
     } else if (mode == MODE_DIR) {
       if (peerResults.length != 1) {
-        trace(1, "Wanted 1 result but got " + peerResults.length);
+        trace(1, "Wanted 1 result but got {}", peerResults.length);
         peerError = "Multiple results from peer.";
       } else {
         dirResult = peerResults[0];
       }
     }
+  }
 
-    // Ensure awtBlocker is visible...
-    try { awtBlockerIsVisible.await(); }
-    catch (Exception e) { e.printStackTrace(); } // what to do here?
+  // The request as seen by a backend, and where the backend reports back.
+  protected class Session implements DialogPeer.Request, DialogPeer.Response {
 
-    // ... then hide it to notify AWT/Swing thread that result is ready.
-    EventQueue.invokeLater(() -> {
-      awtBlocker.setVisible(false);
-      if (isWindows) {
-        // On Windows, when the popup is closed, focus is entirely lost from
-        // the application, and some other app is brought to the front. If we
-        // have a parent, try to bring it to the front.
-        if (awtParent != null)
-          awtParent.requestFocus();
+    public long getId() { return id; }
+    public DialogOptions getOptions() { return options; }
+    public int getMode() { return mode; }
+    public String getTitle() { return title; }
+    public String getInitialPath() { return initialPath; }
+    public Filter[] getFilters() { return filters == null ? new Filter[0] : filters; }
+    public Component getParent() { return awtParent; }
+    public Point getLocation() { return loc == null ? null : new Point(loc); }
+
+    public void shown() {
+      shownNanos = measure(DialogMetrics.SHOWN, startNanos);
+    }
+
+    public void closed() {
+      closedNanos = System.nanoTime();
+      if (shownNanos != 0)
+        phaseNanos[DialogMetrics.DECISION] = closedNanos - shownNanos;
+    }
+
+    public void canceled() {
+      peerCanceled = true;
+    }
+
+    public void error(String message) {
+      peerError = message;
+    }
+
+    public void result(String path) {
+      if (peerCountLeft <= 0) {
+        peerError = "too many results";
+      } else {
+        peerResults[peerResults.length - peerCountLeft] = path;
+        peerCountLeft--;
       }
-    });
+    }
 
-  }
+    public void results(String dir, int count) {
+      peerResultDir = dir;
+      peerCountLeft = count;
+      if (peerCountLeft <= 0)
+        peerError = "invalid count";
+      else
+        peerResults = new String[peerCountLeft];
+    }
 
-  // This must be called from background thread.
-  protected void openSWTPeer() throws Exception {
+    public void resultName(String name) {
+      if (peerCountLeft <= 0) {
+        peerError = "too many results";
+      } else {
+        peerResults[peerResults.length - peerCountLeft] = name;
+        peerCountLeft--;
+        stream(name);
+      }
+    }
 
-    String err = install();
-    if (err != null)
-      throw new Exception("installation failed: " + err);
-    if (javaExePath == null || peerClassPath == null)
-      throw new Exception("BetterFileDialog installation still failed");
+    public void checkedOverwrite() {
+      peerCheckedOverwrite = true;
+    }
+
+    public void suggestExtension(String ext) {
+      peerSuggestsExtension = ext;
+    }
+
+    public void timing(String phase, long nanos) {
+      for (int i = 0; i < DialogMetrics.PHASES.length; i++)
+        if (DialogMetrics.PHASES[i].equals(phase))
+          phaseNanos[i] = nanos;
+    }
+
+    public boolean isComplete() {
+      return peerError != null || peerCanceled || peerCountLeft == 0;
+    }
+  }
+
+  // Command used to start a peer process, without any dialog-specific
+  // arguments.
+  protected static ArrayList<String> peerCommand() {
+    return peerCommand(appName);
+  }
 
+  protected static ArrayList<String> peerCommand(String appName) {
     ArrayList<String> cmd = new ArrayList<>();
     cmd.add(javaExePath);
+    List<String> opts = peerJvmOptions;
+    cmd.addAll(opts);
+    // The peer's stdout carries the protocol, so JVM output goes to stderr.
+    cmd.add("-XX:+DisplayVMOutputToStderr");
+    cmd.add("-Xlog:disable");
+    cmd.add("-Xlog:all=warning:stderr");
     if (isMacOS)
       cmd.add("-XstartOnFirstThread");
+    // The archive is only valid for the JVM options it was built with.
+    String jsa = peerSharedArchive;
+    if (jsa != null && peerSharedArchiveOptions == opts)
+      cmd.add("-XX:SharedArchiveFile=" + jsa);
     cmd.add("-cp");
     cmd.add(peerClassPath);
     cmd.add("org.kwalsh.BetterFileDialogPeer");
@@ -493,81 +1468,117 @@ public class BetterFileDialog {
       cmd.add("--appname");
       cmd.add(appName);
     }
-    cmd.add("--prompt");
-    cmd.add(PROMPTS[mode]);
-    if (loc != null) {
-      cmd.add("--loc");
-      cmd.add(loc.x+","+loc.y);
-    }
-    if (initialPath != null) {
-      cmd.add("--path");
-      cmd.add(initialPath);
+    int lvl = traceLevel;
+    if (lvl != 0) {
+      cmd.add("--debug");
+      cmd.add("" + lvl);
     }
-    if (filters != null && filters.length > 0) {
-      for (Filter f : filters) {
-        cmd.add("--filter");
-        cmd.add(f.encodeForPeer());
+    return cmd;
+  }
+
+  // Resident peers, busy or not, and the ones waiting for a request. At most
+  // maxResidentPeers are kept.
+  private static final Object residentLock = new Object();
+  private static final ArrayList<PeerProcess> residentPeers = new ArrayList<>();
+  private static final ArrayList<PeerProcess> idleResidentPeers = new ArrayList<>();
+  private static PeerProcess sparePeer; // pre-spawned by warmup(), used once
+
+  protected static PeerProcess startResidentPeer() throws Exception {
+    ArrayList<String> cmd = peerCommand();
+    cmd.add("--resident");
+    cmd.add("" + residentIdleTimeout);
+    trace(2, () -> "Resident peer: " + String.join(" ", cmd));
+    return PeerProcess.start(cmd, true);
+  }
+
+  // Drop idle resident peers that have exited, e.g. after their idle timeout.
+  // This must be called with residentLock held.
+  private static void pruneResidentPeers() {
+    for (int i = idleResidentPeers.size() - 1; i >= 0; i--) {
+      PeerProcess p = idleResidentPeers.get(i);
+      if (!p.isAlive()) {
+        trace(1, "Resident peer {} has exited", p.pid());
+        idleResidentPeers.remove(i);
+        residentPeers.remove(p);
+        p.destroy();
       }
     }
-    if (traceLevel != 0) {
-      cmd.add("--debug");
-      cmd.add("" + traceLevel);
+  }
+
+  // Make sure an idle resident peer, or in non-resident mode a spare peer, is
+  // running. Returns the peer, or null if all resident peers are busy.
+  protected static PeerProcess spawnSparePeer() throws Exception {
+    synchronized(residentLock) {
+      if (resident) {
+        pruneResidentPeers();
+        if (!idleResidentPeers.isEmpty())
+          return idleResidentPeers.get(idleResidentPeers.size() - 1);
+        if (residentPeers.size() >= maxResidentPeers)
+          return null;
+        PeerProcess p = startResidentPeer();
+        residentPeers.add(p);
+        idleResidentPeers.add(p);
+        return p;
+      } else {
+        if (sparePeer == null || !sparePeer.isAlive()) {
+          if (sparePeer != null)
+            sparePeer.destroy();
+          sparePeer = startResidentPeer();
+        }
+        return sparePeer;
+      }
     }
+  }
 
-    ProcessBuilder pb = new ProcessBuilder(cmd);
-    pb.redirectErrorStream(true);
-    trace(2, "Peer: " + String.join(" ", cmd));
+  // Take the spare peer, if there is one still running.
+  protected static PeerProcess takeSparePeer() {
+    synchronized(residentLock) {
+      PeerProcess p = sparePeer;
+      sparePeer = null;
+      if (p != null && !p.isAlive()) {
+        p.destroy();
+        p = null;
+      }
+      return p;
+    }
+  }
 
-    peer = pb.start();
+  // Take a resident peer for one request, spawning one if needed. Returns null
+  // if maxResidentPeers are already busy with other dialogs. The most recently
+  // used idle peer is preferred, so that spare ones reach their idle timeout.
+  protected static PeerProcess acquireResidentPeer() throws Exception {
+    synchronized(residentLock) {
+      pruneResidentPeers();
+      PeerProcess p;
+      if (!idleResidentPeers.isEmpty()) {
+        p = idleResidentPeers.remove(idleResidentPeers.size() - 1);
+      } else if (residentPeers.size() < maxResidentPeers) {
+        p = startResidentPeer();
+        residentPeers.add(p);
+      } else {
+        return null;
+      }
+      if (tracing(3))
+        trace(3, "Resident peers: {} busy, {} idle",
+            residentPeers.size() - idleResidentPeers.size(), idleResidentPeers.size());
+      return p;
+    }
   }
-  
-  // This must be called from background thread.
-  protected void readSWTPeer() throws Exception {
-    try (InputStream is = peer.getInputStream();
-        Reader isr = new InputStreamReader(is);
-        BufferedReader r = new BufferedReader(isr)) {
-      while (true) {
-        String line = r.readLine();
-        trace(2, "Peer > " + line);
-        if (line.startsWith("EXIT")) {
-          break;
-        } else if (line.startsWith("STATUS: checked overwrite")) {
-          peerCheckedOverwrite = true;
-        } else if (line.startsWith("STATUS: suggest extension: ")) {
-          peerSuggestsExtension = line.substring(27);
-          if (peerSuggestsExtension.length() == 0)
-            peerSuggestsExtension = null;
-        } else if (line.startsWith("STATUS: ")) {
-          // ignore...
-        } else if (line.startsWith("RESULT: ")) {
-          if (peerCountLeft <= 0) {
-            peerError = "too many results";
-            if (traceLevel <= 1) break;
-          } else {
-            peerResults[peerResults.length - peerCountLeft] = line.substring(8);
-            peerCountLeft--;
-            if (traceLevel <= 1 && peerCountLeft == 0) break;
-          }
-        } else if (line.startsWith("RESULT DIR: ")) {
-          peerResultDir = line.substring(12);
-        } else if (line.startsWith("RESULT COUNT: ")) {
-          try { peerCountLeft = Integer.parseInt(line.substring(14)); }
-          catch (Exception e) { }
-          if (peerCountLeft <= 0) {
-            peerError = "invalid count";
-            if (traceLevel <= 1) break;
-          } else {
-            peerResults = new String[peerCountLeft];
-          }
-        } else if (line.startsWith("ERROR: ")) {
-          peerError = line.substring(7);
-          if (traceLevel <= 1) break;
-        } else if (line.startsWith("CANCELED")) {
-          peerCanceled = true;
-          if (traceLevel <= 1) break;
+
+  // Give a resident peer back after a request. If the request didn't end
+  // cleanly, the peer can't be trusted for another request, so we kill it.
+  // Spare peers are always killed, they are only used once.
+  protected static void releaseResidentPeer(PeerProcess p, boolean reusable) {
+    synchronized(residentLock) {
+      if (residentPeers.contains(p)) {
+        if (reusable && residentPeers.size() <= maxResidentPeers) {
+          idleResidentPeers.add(p);
+          return;
         }
-      } 
+        residentPeers.remove(p);
+      }
     }
+    p.destroy();
   }
 
   // This is designed for simple extensions that do not themselves contain dots.
@@ -615,12 +1626,7 @@ public class BetterFileDialog {
   }
 
   protected static boolean matchesFilterExtension(String path, ArrayList<Filter> filters) {
-    if (filters == null || filters.size() == 0)
-      return true;
-    for (Filter f : filters)
-      if (f.acceptExtension(path))
-        return true;
-    return false;
+    return Filter.matchesAny(path, filters);
   }
 
   // This must run on the AWT/Swing thread. This blocks until result is ready.
@@ -638,7 +1644,7 @@ public class BetterFileDialog {
         mode == MODE_SAVE ? "Save File" :
         mode == MODE_DIR ? "Select Directory" : "Unknown");
     awtBlocker.setModal(true);
-    if (traceLevel > 1) {
+    if (options.getTraceLevel() > 1) {
       awtBlocker.setSize(200, 200);
       awtBlocker.setLocation(100, 100);
     } else {
@@ -665,20 +1671,47 @@ public class BetterFileDialog {
     // By here, background thread must have finished and hid awtBlocker.
     awtBlocker.dispose();
 
-    if (peerError != null && errorHandler != null) {
-      try { errorHandler.accept(peerError); }
+    finishOnAWT();
+  }
+
+  // Whether finishOnAWT() has anything to do, i.e. something to show the user.
+  protected boolean needsAWTToFinish() {
+    return peerError != null || (mode == MODE_SAVE && fileResult != null);
+  }
+
+  // This must run on the AWT/Swing thread, after the backend is done.
+  protected void finishOnAWT() {
+    if (peerError != null && traceBufferLevel > 0 && DialogTrace.dumpOnError)
+      DialogTrace.dump(System.err);
+    Consumer<String> handler = options.getErrorHandler();
+    if (peerError != null && handler != null) {
+      try { handler.accept(peerError); }
       catch (Exception e) { e.printStackTrace(); }
     }
 
-    if (peerError != null) {
-      fallback = true;
-      doSwingDialogFallback();
-      return;
+    if (peerError != null && streamed > 0) {
+      // The consumer already has part of a selection, so asking the user
+      // again would be worse than failing, see streamFiles().
+      if (streamFailure == null)
+        streamFailure = new IllegalStateException("dialog failed after " +
+            streamed + " files: " + peerError);
+    } else if (peerError != null && backend != SwingDialogPeer.INSTANCE) {
+      if (backend == SwtDialogPeer.INSTANCE) {
+        // Later dialogs go straight to Swing, so have a chooser ready for them.
+        fallback = true;
+        SwingDialogPeer.prebuild();
+      }
+      backend = SwingDialogPeer.INSTANCE;
+      resetResults();
+      runBackend();
     }
 
     // Check extension and overwrite after save dialogs
-    if (mode == MODE_SAVE && fileResult != null)
+    if (mode == MODE_SAVE && fileResult != null) {
+      long t = System.nanoTime();
       checkOverwrite();
+      measure(DialogMetrics.POSTPROCESS, t);
+    }
   }
   
   // This must run on the AWT/Swing thread.
@@ -698,9 +1731,13 @@ public class BetterFileDialog {
       }
     }
 
-    // Sanity check: can't write to directory
+    // Everything below comes from a single stat, which matters on network
+    // storage. Only an existing file needs an access check.
     File file = new File(fileResult);
-    if (file.isDirectory()) {
+    BasicFileAttributes attrs = stat(file);
+
+    // Sanity check: can't write to directory
+    if (attrs != null && attrs.isDirectory()) {
       JOptionPane.showMessageDialog(awtParent,
           "A directory named \"" + file.getName() + "\" already exists.",
           "Error Saving File", JOptionPane.OK_OPTION);
@@ -709,7 +1746,7 @@ public class BetterFileDialog {
     }
 
     // Sanity check: can't write to protected file
-    if (file.exists() && !file.canWrite()) {
+    if (attrs != null && !file.canWrite()) {
       JOptionPane.showMessageDialog(awtParent,
           "Permission denied: " + file.getName(),
           "Error Saving File", JOptionPane.OK_OPTION);
@@ -718,7 +1755,7 @@ public class BetterFileDialog {
     }
 
     // Sanity check: warn on overwrite, if SWT hasn't already done so
-    if (file.exists() && !peerCheckedOverwrite) {
+    if (attrs != null && !peerCheckedOverwrite) {
       int confirm = JOptionPane.showConfirmDialog(awtParent,
           "A file named \"" + file.getName() + "\" exists. Overwrite it?",
           "Confirm Overwrite",
@@ -731,89 +1768,20 @@ public class BetterFileDialog {
 
   }
   
-  static File toDir(File path) {
-    return path.isDirectory() ? path : path.getParentFile();
-  }
-  
-  static File toFilePath(String path) {
-    if (path.endsWith(File.separator))
+  // Attributes of file, following links, or null if it doesn't exist or can't
+  // be read, in which case File.exists() would be false too.
+  static BasicFileAttributes stat(File file) {
+    try {
+      return Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+    } catch (IOException | RuntimeException e) {
       return null;
-    File f = new File(path);
-    return f.isDirectory() ? null : f;
-  }
-
-  // This must run on the AWT/Swing thread.
-  protected void doSwingDialogFallback() {
-    peerCheckedOverwrite = false;
-    if (mode == MODE_OPEN || mode == MODE_SAVE || mode == MODE_MULTI) {
-      JFileChooser fc = new JFileChooser();
-      if (this.title != null)
-        fc.setDialogTitle(title);
-      if (initialPath != null) {
-        File path = new File(initialPath);
-        File dir = toDir(path);
-        File file = toFilePath(initialPath);
-        if (dir != null)
-          fc.setCurrentDirectory(dir);
-        if (file != null)
-          fc.setSelectedFile(file);
-      }
-      if (filters != null && filters.length > 0) {
-        for (Filter f : filters)
-          fc.addChoosableFileFilter(f);
-        fc.setFileFilter(filters[0]);
-      }
-      if (mode == MODE_MULTI)
-        fc.setMultiSelectionEnabled(true);
-      int ret;
-      if (mode == MODE_SAVE)
-        ret = fc.showSaveDialog(awtParent);
-      else
-        ret = fc.showOpenDialog(awtParent);
-      if (ret == JFileChooser.APPROVE_OPTION) {
-        if (mode == MODE_MULTI) {
-          dirResult = fc.getCurrentDirectory().getPath();
-          File[] files = fc.getSelectedFiles();
-          multiResult = new String[files.length];
-          for (int i = 0; i < files.length; i++)
-            multiResult[i] = files[i].getPath();
-        } else {
-          fileResult = fc.getSelectedFile().getPath();
-          if (mode == MODE_SAVE && filters != null && filters.length > 0) {
-            Filter usedFilter = filters[0];
-            javax.swing.filechooser.FileFilter chosenFilter = fc.getFileFilter();
-            if (chosenFilter instanceof Filter)
-              usedFilter = (Filter)chosenFilter;
-            peerSuggestsExtension = usedFilter.getDefaultExtension();
-          } 
-        }
-      }
-    } else if (mode == MODE_DIR) {
-      JFileChooser fc = new JFileChooser();
-      if (this.title != null)
-        fc.setDialogTitle(title);
-      if (initialPath != null) {
-        File path = new File(initialPath);
-        File dir = toDir(path);
-        if (dir != null) {
-          File parent = dir.getParentFile();
-          if (parent != null)
-            fc.setCurrentDirectory(parent);
-          fc.setSelectedFile(dir);
-        }
-      }
-      fc.setFileSelectionMode(JFileChooser.DIRECTORIES_ONLY);
-      int ret = fc.showOpenDialog(awtParent);
-      if (ret == JFileChooser.APPROVE_OPTION) {
-        dirResult = fc.getSelectedFile().getPath();
-      }
     }
-
-    // Check extension and overwrite after save dialogs
-    if (mode == MODE_SAVE && fileResult != null)
-      checkOverwrite();
   }
 
+  static File toDir(File path) {
+    return path.isDirectory() ? path : path.getParentFile();
+  }
+  
   private static String toString(File path) {
     return path == null ? null : path.getPath();
   }
@@ -822,29 +1790,41 @@ public class BetterFileDialog {
     return path == null ? null : new File(path);
   }
 
+  static String toString(Path path) {
+    return path == null ? null : path.toString();
+  }
+
+  static Path toPath(String path) {
+    return path == null ? null : Paths.get(path);
+  }
+
   // Some pre-defined filters, for convenience.
-  public static final Filter ANY_FILTER = new Filter("All Files", "*");
-  public static final Filter JPG_FILTER = new Filter("JPEG Images", "jpg", "jpeg", "jpe", "jfi", "jfif", "jfi");
-  public static final Filter PNG_FILTER = new Filter("PNG Images", "png");
-  public static final Filter IMAGE_FILTER = new Filter("Images", "jpg", "jpeg", "png");
-  public static final Filter TXT_FILTER = new Filter("Plain Text Files", "txt");
-  public static final Filter XML_FILTER = new Filter("XML Files", "xml");
+  public static final Filter ANY_FILTER = Filter.any();
+  public static final Filter JPG_FILTER = Filter.of("JPEG Images", "jpg", "jpeg", "jpe", "jfi", "jfif", "jfi");
+  public static final Filter PNG_FILTER = Filter.of("PNG Images", "png");
+  public static final Filter IMAGE_FILTER = Filter.of("Images", "jpg", "jpeg", "png");
+  public static final Filter TXT_FILTER = Filter.of("Plain Text Files", "txt");
+  public static final Filter XML_FILTER = Filter.of("XML Files", "xml");
 
   /**
    * Filter relies on file extensions to determine acceptability for display.
    * This is the only type of filtering supported, as it is the only filtering
    * that works across the three supported platforms.
+   *
+   * Filters are immutable, and two filters with the same name and extensions
+   * are equal. Constructing one is cheap: the description, the case
+   * permutations, and the matcher are only built when first needed.
    */
   public static final class Filter 
     extends javax.swing.filechooser.FileFilter
     implements java.io.FileFilter {
 
-    private String name;
-    private String description;
-    private String[] extensions; // at least one entry, all non-null, mixed case
-    private String permutations; // semi-colon delineated case list of case-permuted extensions
-    private boolean wildcard;
-    private String defaultExtension;
+    private final ExtensionFilter core; // everything but the Swing and java.io parts
+
+    // Canonical instances, see of(). This only holds filters that were asked
+    // for through of(), and stops growing once it is full.
+    private static final int CACHE_LIMIT = 256;
+    private static final ConcurrentHashMap<Filter, Filter> cache = new ConcurrentHashMap<>();
 
     /**
      * Construct a Filter that accepts files with one of the given extensions,
@@ -869,126 +1849,72 @@ public class BetterFileDialog {
      */
     public Filter(String name, String... extension)
     {
-      if (name == null)
-        throw new IllegalArgumentException("Name must not be null");
-      this.name = name;
-
-      wildcard = false;
-      if (extension == null || extension.length == 0) {
-        extensions = new String[] { "*" };
-        wildcard = true;
-      } else {
-        extensions = new String[extension.length];
-        for (int i = 0; i < extension.length; i++) {
-          String ext = extension[i];
-          if (ext == null)
-            ext = "*";
-          else if (ext.startsWith("*."))
-            ext = ext.substring(2);
-          else if (ext.startsWith("."))
-            ext = ext.substring(1);
-          extensions[i] = ext; // mixed case
-          if ("*".equals(ext))
-            wildcard = true;
-          else if (defaultExtension == null)
-            defaultExtension = ext;
-        }
-      }
+      this(new ExtensionFilter(name, ExtensionFilter.normalize(extension), null, null));
+    }
 
-      description = name + " (*." + extensions[0];
-      for (int i = 1; i < extensions.length; i++)
-        description += ", *." + extensions[i]; // mixed case
-      description += ")"; 
+    Filter(ExtensionFilter core)
+    {
+      this.core = core;
+    }
 
-      if (wildcard) {
-        permutations = "*"; // "*.*" doesn't work for files with no extension on Linux
-      } else {
-        // generate case permutations
-        ArrayList<String> p = new ArrayList<>();
-        for (String ext : extensions) {
-          if (ext.length() > 4) {
-            p.add(ext); // mixed case
-            String lower = ext.toLowerCase();
-            if (!lower.equals(ext))
-              p.add(lower);
-            String upper = ext.toUpperCase();
-            if (!upper.equals(ext))
-              p.add(upper);
-            String title = titleCase(ext);
-            if (!title.equals(ext) && !title.equals(upper) && !title.equals(lower))
-              p.add(title);
-          } else {
-            // permute case
-            char[] word = ext.toLowerCase().toCharArray();
-            int n = 1 << word.length;
-            for (int i = 0; i < n; i++) {
-              String e = casePermutation(word, i);
-              if (e != null)
-                p.add(e);
-            }
-          }
-        }
-        permutations = "*." + p.get(0);
-        for (int i = 1; i < p.size(); i++)
-          permutations += ";*." + p.get(i);
-      }
+    /**
+     * Return a Filter that accepts files with one of the given extensions, or
+     * any directory. This is the same as the constructor, except that equal
+     * filters are shared, so asking for the same filter again costs nothing,
+     * and any work done lazily for it (e.g. computing case permutations) is
+     * only ever done once.
+     * @param name - a name for this filter, e.g. "Image Files".
+     * @param extension - one or more extensions, e.g. "jpg", "png", "*".
+     */
+    public static Filter of(String name, String... extension) {
+      Filter f = new Filter(name, extension);
+      Filter c = cache.get(f);
+      if (c != null)
+        return c;
+      if (cache.size() >= CACHE_LIMIT)
+        return f;
+      c = cache.putIfAbsent(f, f);
+      return c != null ? c : f;
     }
 
-    private static String titleCase(String ext) {
-      char[] word = ext.toCharArray();
-      int n = word.length;
-      boolean sawWordBreak = true;
-      for (int i = 0; i < n; i++) {
-        char l = Character.toLowerCase(word[i]);
-        char u = Character.toUpperCase(word[i]);
-        if (l == u) {
-          sawWordBreak = true;
-        } else if (sawWordBreak) {
-          word[i] = u;
-          sawWordBreak = false;
-        } else {
-          word[i] = l;
-        }
-      }
-      return new String(word);
-    }
-
-    private static String casePermutation(char[] word, int bits) {
-      int n = word.length;
-      char[] perm = new char[n];
-      for (int i = 0; i < n; i++) {
-        char c = word[i];
-        if ((bits & (1 << i)) != 0) {
-          char u = Character.toUpperCase(c);
-          if (u == c)
-            return null;
-          perm[i] = u;
-        } else {
-          perm[i] = c;
-        }
-      }
-      return new String(perm);
+    // The filter used when none are given.
+    static Filter any() {
+      return of("All Files", "*");
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (o == this)
+        return true;
+      if (!(o instanceof Filter))
+        return false;
+      return core.equals(((Filter)o).core);
+    }
+
+    @Override
+    public int hashCode() {
+      return core.hashCode();
     }
 
     // Return the name of this filter, for example, "Image Files".
-    public String getName() { return name; }
+    public String getName() { return core.name; }
 
     // Return a description of this filter, for example,
     // "Image Files (*.png, *.jpg, *.jpeg)".
     @Override
-    public String getDescription() { return description; }
+    public String getDescription() { return core.getDescription(); }
 
     // Return a semi-colon delineated list of extensions, for example,
     // "*.jpg;*.png;*.jpeg;*.JPG;*.Jpg;*.JPg;..." This includes permutatons of
     // upper/lower case for extensions with four characters or less.
-    public String getExtensions() { return permutations; }
+    public String getExtensions() { return core.getExtensions(); }
 
     // Return whether this filter accepts all filenames.
-    public boolean isWildcard() { return wildcard; }
+    public boolean isWildcard() { return core.wildcard; }
 
     // Return the default extension, i.e. the first non-wildcard extension in
     // the list of accepted extensions.
-    public String getDefaultExtension() { return defaultExtension; }
+    public String getDefaultExtension() { return core.defaultExtension; }
 
     /**
      * Check if a given directory/file pair matches one of the allowed
@@ -1000,7 +1926,11 @@ public class BetterFileDialog {
      * result matches a desired filter.
      */
     public boolean accept(File dir, String name) {
-      return name == null || name.length() == 0 || accept(new File(dir, name));
+      if (name == null || name.length() == 0 || core.wildcard)
+        return true;
+      int from = name.lastIndexOf(File.separatorChar) + 1;
+      return core.matcher().matches(name, from, name.length(), from)
+        || new File(dir, name).isDirectory();
     }
 
     /**
@@ -1015,14 +1945,12 @@ public class BetterFileDialog {
     public boolean accept(File path) {
       if (path == null)
         return false;
-      if (path.isDirectory() || wildcard)
+      if (core.wildcard)
         return true;
-      String lname = path.getName().toLowerCase();
-      for (String ext : extensions) {
-        if (lname.endsWith("."+ext.toLowerCase()))
-          return true;
-      }
-      return false;
+      // Check the name first, as isDirectory() costs a system call.
+      String p = path.getPath();
+      int from = p.lastIndexOf(File.separatorChar) + 1;
+      return core.matcher().matches(p, from, p.length(), from) || path.isDirectory();
     }
     public boolean accept(String path) {
       return accept(toFile(path));
@@ -1042,31 +1970,30 @@ public class BetterFileDialog {
      * length.
      */
     public boolean acceptExtension(String path) {
-      if (path == null)
-        return false;
-      if (wildcard)
+      return core.acceptExtension(path);
+    }
+
+    // The AWT-free part of this filter, which is all the peer needs.
+    ExtensionFilter core() {
+      return core;
+    }
+
+    // See ExtensionFilter.encodeForPeer().
+    void encodeForPeer(List<String> args) {
+      core.encodeForPeer(args);
+    }
+
+    // Check if a path matches the extension of at least one of the filters, as
+    // per acceptExtension(). An empty list of filters matches everything.
+    static boolean matchesAny(String path, List<Filter> filters) {
+      if (filters == null || filters.size() == 0)
         return true;
-      int idx = path.lastIndexOf(File.separator);
-      if (idx >= 0)
-        path = path.substring(idx+1);
-      String lname = path.toLowerCase();
-      if (lname.equals(""))
-          return false; // empty name can't possibly match an extension
-      String lnameSuffix = lname.substring(1); // don't match first char
-      for (String ext : extensions) {
-        if (lnameSuffix.endsWith("."+ext.toLowerCase()))
+      for (Filter f : filters)
+        if (f.acceptExtension(path))
           return true;
-      }
       return false;
     }
 
-    protected String encodeForPeer() {
-      String s = name + ":" + extensions[0];
-      for (int i = 1; i < extensions.length; i++)
-        s += "," + extensions[i];
-      return s;
-    }
-
   } // end of Filter
 
 }
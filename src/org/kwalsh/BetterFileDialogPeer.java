@@ -1,7 +1,12 @@
 package org.kwalsh;
 
+import java.io.EOFException;
 import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.List;
 import org.eclipse.swt.SWT;
 import org.eclipse.swt.graphics.Rectangle;
 import org.eclipse.swt.widgets.DirectoryDialog;
@@ -21,11 +26,18 @@ import org.eclipse.swt.widgets.Shell;
 public class BetterFileDialogPeer {
 
   static int traceLevel = 0;
+  static int traceBufferLevel = 0; // the client's, for events it only records
 
   static boolean isMacOS;
   static boolean isLinux;
   static boolean isWindows;
 
+  static {
+    isMacOS = System.getProperty("os.name").toLowerCase().startsWith("mac");
+    isLinux = System.getProperty("os.name").toLowerCase().startsWith("linux");
+    isWindows = System.getProperty("os.name").toLowerCase().startsWith("windows");
+  }
+
   static Display swtDisplay;
   static Shell swtShell;
 
@@ -42,20 +54,100 @@ public class BetterFileDialogPeer {
   static String initialPath;
   static String initialDir;
   static String suggestedFileName;
-  static ArrayList<BetterFileDialog.Filter> filters = new ArrayList<>();
+  static ArrayList<ExtensionFilter> filters = new ArrayList<>();
+
+  static boolean resident = false;
+  static long idleTimeout;
+  static boolean training = false;
+
+  // Messages to and from the client, on stdout and stdin, or on the control
+  // socket given by --control. See PeerProtocol and PeerChannel.
+  static PeerProtocol.Writer out;
+  static PeerProtocol.Reader in;
+
+  // Where the outcome of a dialog is reported. In a peer process, this writes
+  // frames to stdout, see FrameSink. When dialogs are shown in the client's
+  // own JVM, it reports straight to the client instead, see
+  // SwtInProcessDialogPeer.
+  interface Sink {
+    void shown();
+    void closed();
+    void canceled();
+    void error(String message);
+    void result(String path);
+    void results(String dir, String[] names);
+    void checkedOverwrite();
+    void suggestExtension(String ext);
+    void heartbeat();
+    void trace(int lvl, String msg);
+  }
+
+  static Sink sink;
+
+  static final class FrameSink implements Sink {
+    public void shown() { send(PeerProtocol.SHOWN); }
+    public void closed() { send(PeerProtocol.CLOSED); }
+    public void canceled() { send(PeerProtocol.CANCELED); }
+    public void error(String message) { send(PeerProtocol.ERROR, message); }
+    public void result(String path) { send(PeerProtocol.RESULT, path); }
+    public void results(String dir, String[] names) {
+      send(PeerProtocol.RESULT_DIR, dir);
+      send(PeerProtocol.RESULT_COUNT, names.length);
+      try { out.sendBatches(PeerProtocol.RESULT_BATCH, names, BATCH_BYTES); }
+      catch (IOException e) { lost(e); }
+    }
+    public void checkedOverwrite() { send(PeerProtocol.CHECKED_OVERWRITE); }
+    public void suggestExtension(String ext) { send(PeerProtocol.SUGGEST_EXTENSION, ext); }
+    public void heartbeat() { send(PeerProtocol.HEARTBEAT); }
+    public void trace(int lvl, String msg) { send(PeerProtocol.TRACE, msg); }
+  }
 
   // Entry point for SWT-based child process. Command-line arguments are:
   // --appname name
-  // --prompt openfile|openfiles|savefile|pickdir
-  // --loc x,y
-  // --title title 
-  // --path initialPath
-  // --filter name:ext1,ext2,ext3,...
   // --debug level
+  // --resident idleTimeout
+  // --cds-training true
+  // --control path
+  // Everything about the dialog itself comes over stdin as a REQUEST frame,
+  // once per request in resident mode, or just once otherwise. See
+  // PeerProtocol and PeerProcess for details.
   public static void main(String[] args) {
+    // Keep stdout for protocol frames only, unless there is a control socket.
+    // Anything else printed, by us or by SWT, goes to stderr.
+    try { connect(args); }
+    catch (IOException e) { lost(e); }
+    sink = new FrameSink();
+    System.setOut(System.err);
+    try {
+      out.magic();
+      out.send(PeerProtocol.HELLO, PeerProtocol.VERSION);
+    } catch (IOException e) {
+      lost(e);
+    }
+
     try { parseArgs(args); }
     catch (Throwable e) { die(e); }
 
+    if (training) {
+      train();
+      System.exit(0);
+    }
+
+    if (resident) {
+      trace(1, "Executing as resident peer");
+
+      try { runResident(); }
+      catch (Throwable e) { die(e); }
+
+      trace(1, "Exiting");
+
+      send(PeerProtocol.EXIT);
+      System.exit(0);
+    }
+
+    try { parseRequest(readRequest(in)); }
+    catch (Throwable e) { die(e); }
+
     if (mode < 0)
       die("missing prompt argument");
 
@@ -66,10 +158,53 @@ public class BetterFileDialogPeer {
 
     trace(1, "Exiting");
 
-    System.out.println("EXIT");
+    send(PeerProtocol.EXIT);
     System.exit(0);
   }
 
+  // Open the connection to the client: the control socket, if --control is
+  // given, else stdin and stdout.
+  static void connect(String[] args) throws IOException {
+    for (int i = 0; i + 1 < args.length; i += 2) {
+      if (args[i].equals("--control")) {
+        PeerChannel ch = PeerChannel.connect(args[i+1]);
+        in = new PeerProtocol.Reader(ch.input());
+        out = new PeerProtocol.Writer(ch.output());
+        return;
+      }
+    }
+    in = new PeerProtocol.Reader(System.in);
+    out = new PeerProtocol.Writer(new FileOutputStream(FileDescriptor.out));
+  }
+
+  static void send(int type) {
+    try { out.send(type); }
+    catch (IOException e) { lost(e); }
+  }
+
+  static void send(int type, int value) {
+    try { out.send(type, value); }
+    catch (IOException e) { lost(e); }
+  }
+
+  static void send(int type, String s) {
+    try { out.send(type, s); }
+    catch (IOException e) { lost(e); }
+  }
+
+  static void send(int type, List<String> strings) {
+    try { out.send(type, strings); }
+    catch (IOException e) { lost(e); }
+  }
+
+  static final int BATCH_BYTES = 32 * 1024;
+
+  // The client has gone away, so there is nobody left to show a dialog for.
+  static void lost(IOException e) {
+    e.printStackTrace();
+    System.exit(1);
+  }
+
   static void cleanup() {
     if (swtShell != null && !swtShell.isDisposed()) {
       try { swtShell.close(); }
@@ -86,21 +221,61 @@ public class BetterFileDialogPeer {
   static void die(String msg) { die(msg, null); }
   static void die(Throwable e) { die(e.getMessage(), e); }
   static void die(String msg, Throwable e) {
-    System.out.println("ERROR: " + msg);
+    send(PeerProtocol.ERROR, "" + msg);
     if (e != null)
       e.printStackTrace();
     cleanup();
-    System.out.println("EXIT");
+    send(PeerProtocol.EXIT);
     System.exit(1);
   }
 
   static void parseArgs(String[] args) throws Exception {
-    for (int i = 0; i < args.length; i += 2) {
+    for (int i = 0; i + 1 < args.length; i += 2) {
       String arg = args[i];
       String param = args[i+1];
-      if (arg.equals("--appName")) {
+      if (arg.equals("--appname") || arg.equals("--appName")) {
         appName = param;
-      } else if (arg.equals("--prompt")) {
+      } else if (arg.equals("--debug")) {
+        traceLevel = Integer.parseInt(param);
+      } else if (arg.equals("--control")) {
+        // see connect()
+      } else if (arg.equals("--cds-training")) {
+        training = Boolean.parseBoolean(param);
+      } else if (arg.equals("--resident")) {
+        resident = true;
+        idleTimeout = Long.parseLong(param);
+      } else {
+        throw new Exception("malformed arguments (unknown option " + arg + ")");
+      }
+    }
+  }
+
+  // Wait for the next REQUEST frame on stdin, and return its payload.
+  static String[] readRequest(PeerProtocol.Reader in) throws IOException {
+    while (true) {
+      int type = in.next();
+      if (type == PeerProtocol.REQUEST)
+        return in.strings();
+      trace(1, "Ignoring unexpected {}", PeerProtocol.name(type));
+    }
+  }
+
+  // Decode the payload of a REQUEST frame. See PeerProtocol for the layout.
+  static void parseRequest(String[] req) throws Exception {
+    int i = 0;
+    while (i < req.length) {
+      String key = req[i++];
+      if (key.equals("filter")) {
+        if (i + 4 > req.length)
+          throw new Exception("malformed request (short filter)");
+        filters.add(ExtensionFilter.decodeForPeer(req, i));
+        i += 4;
+        continue;
+      }
+      if (i >= req.length)
+        throw new Exception("malformed request (missing value for " + key + ")");
+      String param = req[i++];
+      if (key.equals("prompt")) {
         if (param.equalsIgnoreCase("openfile"))
           mode = MODE_OPEN;
         else if (param.equalsIgnoreCase("savefile"))
@@ -110,22 +285,21 @@ public class BetterFileDialogPeer {
         else if (param.equalsIgnoreCase("pickdir"))
           mode = MODE_DIR;
         else
-          throw new Exception("malformed arguments (bad prompt)");
-      } else if (arg.equals("--title")) {
+          throw new Exception("malformed request (bad prompt)");
+      } else if (key.equals("title")) {
         title = param;
-      } else if (arg.equals("--loc")) {
+      } else if (key.equals("loc")) {
         int idx = param.indexOf(",");
         xloc = Integer.parseInt(param.substring(0, idx));
         yloc = Integer.parseInt(param.substring(idx+1));
-      } else if (arg.equals("--path")) {
+      } else if (key.equals("path")) {
         initialPath = param;
-      } else if (arg.equals("--filter")) {
-        int idx = param.indexOf(":");
-        String name = param.substring(0, idx);
-        String[] exts = param.substring(idx+1).split(",");
-        filters.add(new BetterFileDialog.Filter(name, exts));
-      } else if (arg.equals("--debug")) {
+      } else if (key.equals("debug")) {
         traceLevel = Integer.parseInt(param);
+      } else if (key.equals("trace")) {
+        traceBufferLevel = Integer.parseInt(param);
+      } else {
+        trace(1, "Ignoring unknown request field {}", key);
       }
     }
 
@@ -133,30 +307,69 @@ public class BetterFileDialogPeer {
     suggestedFileName = toName(initialPath);
   }
 
-  static void run() {
+  // Training run for the class-data-sharing archive, run with
+  // -XX:ArchiveClassesAtExit. This loads the classes a real dialog would, but
+  // shows nothing. On MacOS, creating a Display can flash an icon in the dock,
+  // so there we only load the SWT classes without creating one.
+  static void train() {
+    String[] names = {
+      "org.eclipse.swt.SWT",
+      "org.eclipse.swt.graphics.Rectangle",
+      "org.eclipse.swt.widgets.Display",
+      "org.eclipse.swt.widgets.Shell",
+      "org.eclipse.swt.widgets.Label",
+      "org.eclipse.swt.widgets.FileDialog",
+      "org.eclipse.swt.widgets.DirectoryDialog",
+    };
+    ClassLoader cl = BetterFileDialogPeer.class.getClassLoader();
+    for (String name : names) {
+      try { Class.forName(name, false, cl); }
+      catch (Throwable e) { trace(1, "Can't load {}", name); }
+    }
+    try {
+      parseRequest(new String[] { "prompt", "openfile", "path", "training.txt",
+          "filter", "Training", "Training (*.txt)", "*.txt", "txt" });
+      ExtensionFilter.matchesAny("training.txt", filters);
+    } catch (Throwable e) { trace(1, "Can't parse request: {}", e.getMessage()); }
+    if (!isMacOS) {
+      try { new Display().dispose(); }
+      catch (Throwable e) { trace(1, "Can't create display: {}", e.getMessage()); }
+    }
+  }
 
-    isMacOS = System.getProperty("os.name").toLowerCase().startsWith("mac");
-    isLinux = System.getProperty("os.name").toLowerCase().startsWith("linux");
-    isWindows = System.getProperty("os.name").toLowerCase().startsWith("windows");
-   
+  // Forget everything about the previous request, for resident mode.
+  static void reset() {
+    mode = -1;
+    title = null;
+    xloc = yloc = -1;
+    initialPath = null;
+    initialDir = null;
+    suggestedFileName = null;
+    filters.clear();
+    traceBufferLevel = 0;
+  }
+
+  static void startDisplay() {
     long pid = ProcessHandle.current().pid();
 
-    trace(2, "Running as process " + pid +" on" +
-        (isMacOS ? " MacOS" : "") +
-        (isLinux ? " Linux" : "") +
-        (isWindows ? " Windows" : ""));
+    trace(2, "Running as process {} on {}", pid,
+        isMacOS ? "MacOS" : isLinux ? "Linux" : isWindows ? "Windows" : "unknown OS");
 
     trace(1, "Checking jvm options");
     String env = System.getenv("JAVA_STARTED_ON_FIRST_THREAD_" + pid);
     if (isMacOS && !"1".equals(env)) {
-      System.out.println("ERROR: JVM on MacOS must" +
-          "be executed with the -XstartOnFirstThread command-line option.\n");
-      die("Bad JVM configuration");
+      die("Bad JVM configuration: JVM on MacOS must " +
+          "be executed with the -XstartOnFirstThread command-line option.");
     }
 
     trace(1, "Preparing SWT display");
     Display.setAppName(appName);
     swtDisplay = new Display();
+  }
+
+  static void run() {
+    startDisplay();
+    send(PeerProtocol.READY);
 
     trace(1, "Scheduling continuation");
     Thread.currentThread().setName("Main Thread");
@@ -182,16 +395,87 @@ public class BetterFileDialogPeer {
     trace(1, "Event loop terminated");
   }
 
+  static void runResident() {
+    startDisplay();
+    send(PeerProtocol.READY);
+    Thread.currentThread().setName("SWT Event Thread");
+
+    Thread reader = new Thread(() -> readRequests(), "Request Reader");
+    reader.setDaemon(true);
+    reader.start();
+
+    scheduleIdleExit();
+
+    trace(1, "Starting event loop");
+    while (!swtDisplay.isDisposed())
+    {
+      if (!swtDisplay.readAndDispatch())
+        swtDisplay.sleep();
+    }
+    trace(1, "Event loop terminated");
+  }
+
+  // Runs on a background thread, handing each request from the client over to
+  // the SWT event thread. The client only sends a new request after it gets DONE
+  // for the previous one.
+  static void readRequests() {
+    try {
+      while (true) {
+        String[] req = readRequest(in);
+        swtDisplay.asyncExec(() -> serve(req));
+      }
+    } catch (EOFException e) {
+      // normal shutdown
+    } catch (Throwable e) {
+      e.printStackTrace();
+    }
+    trace(1, "Client closed connection");
+    try { swtDisplay.asyncExec(() -> cleanup()); }
+    catch (Throwable e) { } // display already disposed
+  }
+
+  static final Runnable idleExit = () -> {
+    trace(1, "Idle timeout");
+    cleanup();
+  };
+
+  static void scheduleIdleExit() {
+    if (idleTimeout > 0 && idleTimeout <= Integer.MAX_VALUE)
+      swtDisplay.timerExec((int)idleTimeout, idleExit);
+  }
+
+  // This runs on the SWT event thread, once per request in resident mode.
+  static void serve(String[] req) {
+    swtDisplay.timerExec(-1, idleExit);
+    try {
+      reset();
+      parseRequest(req);
+      if (mode < 0)
+        throw new Exception("missing prompt argument");
+      process();
+    } catch (Throwable e) {
+      sink.error("" + e.getMessage());
+      e.printStackTrace();
+    }
+    if (swtShell != null && !swtShell.isDisposed())
+      swtShell.setVisible(false);
+    send(PeerProtocol.DONE);
+    scheduleIdleExit();
+  }
+
   static void process() throws Exception {
-    swtShell = new Shell(swtDisplay, SWT.ON_TOP);
+    if (swtShell == null || swtShell.isDisposed())
+      swtShell = new Shell(swtDisplay, SWT.ON_TOP);
 
     if (xloc >= 0 && yloc >= 0) {
-      trace(3, "Positioning at ("+xloc+","+yloc+")");
+      if (tracing(3))
+        trace(3, "Positioning at ({},{})", xloc, yloc);
     } else {
       Rectangle b = swtDisplay.getPrimaryMonitor().getBounds();
       xloc = b.x + b.width/2;
       yloc = b.y + b.height/2;
-      trace(3, "Centering on screen at ("+xloc+","+yloc+")");
+      if (tracing(3))
+        trace(3, "Centering on screen at ({},{})", xloc, yloc);
     }
 
     if (isWindows) {
@@ -202,10 +486,12 @@ public class BetterFileDialogPeer {
     }
 
     if (traceLevel > 1) {
-      Label x = new Label(swtShell, SWT.BORDER);
-      x.setSize(300,30);
-      x.setLocation(50, 50);
-      x.setText("SWT Shell for " + appName);
+      if (swtShell.getChildren().length == 0) {
+        Label x = new Label(swtShell, SWT.BORDER);
+        x.setSize(300,30);
+        x.setLocation(50, 50);
+        x.setText("SWT Shell for " + appName);
+      }
       if (traceLevel < 3)
         swtShell.setAlpha(150);
       swtShell.setSize(400, 100);
@@ -222,12 +508,28 @@ public class BetterFileDialogPeer {
 
     swtShell.open(); // this is necessary for modal behavior of SWT to work properly
 
-    if (mode == MODE_OPEN) pickFile(SWT.OPEN);
-    else if (mode == MODE_MULTI) pickFile(SWT.MULTI);
-    else if (mode == MODE_SAVE) pickFile(SWT.SAVE);
-    else if (mode == MODE_DIR) pickDirectory();
+    // While the dialog is up, let the client know we are still alive. SWT
+    // timers keep running inside the dialog's modal loop, so this also shows
+    // the event thread isn't stuck. If the client has gone away, sending fails
+    // and we exit, rather than leaving an orphaned dialog on the screen.
+    swtDisplay.timerExec(PeerProtocol.HEARTBEAT_MILLIS, heartbeat);
+    try {
+      if (mode == MODE_OPEN) pickFile(SWT.OPEN);
+      else if (mode == MODE_MULTI) pickFile(SWT.MULTI);
+      else if (mode == MODE_SAVE) pickFile(SWT.SAVE);
+      else if (mode == MODE_DIR) pickDirectory();
+    } finally {
+      swtDisplay.timerExec(-1, heartbeat);
+    }
   }
 
+  static final Runnable heartbeat = new Runnable() {
+    public void run() {
+      sink.heartbeat();
+      swtDisplay.timerExec(PeerProtocol.HEARTBEAT_MILLIS, this);
+    }
+  };
+
   static void pickDirectory() {
     DirectoryDialog dialog = new DirectoryDialog(swtShell);
     if (title != null) {
@@ -248,12 +550,17 @@ public class BetterFileDialogPeer {
     if (initialDir != null)
       dialog.setFilterPath(initialDir);
 
+    sink.shown();
     String ret = dialog.open();
+    sink.closed();
 
-    trace(1, "Result=" + ret);
-    trace(1, "FilterPath=" + dialog.getFilterPath());
+    trace(1, "Result={}", ret);
+    trace(1, "FilterPath={}", dialog.getFilterPath());
 
-    System.out.println("RESULT: " + ret);
+    if (ret == null)
+      sink.canceled();
+    else
+      sink.result(ret);
   }
 
   static void pickFile(int style) {
@@ -278,10 +585,9 @@ public class BetterFileDialogPeer {
       // Windows fix: with no filters, Windows adds a poorly-formatted filter
       // named "*.*" with no description. Use the ANY_FILTER instead in this
       // case.
-      dialog.setFilterExtensions(new String[] {
-        BetterFileDialog.ANY_FILTER.getExtensions() });
-      dialog.setFilterNames(new String[] { 
-        BetterFileDialog.ANY_FILTER.getDescription() });
+      ExtensionFilter any = ExtensionFilter.ANY;
+      dialog.setFilterExtensions(new String[] { any.getExtensions() });
+      dialog.setFilterNames(new String[] { any.getDescription() });
       dialog.setFilterIndex(0);
     }
 
@@ -304,15 +610,17 @@ public class BetterFileDialogPeer {
       // overwrite-checking to false does not work, so SWT might still check for
       // overwrites.
       if (dialog.getOverwrite())
-        System.out.println("STATUS: checked overwrite");
+        sink.checkedOverwrite();
     }
 
+    sink.shown();
     String ret = dialog.open();
+    sink.closed();
 
-    if (traceLevel > 0) {
-      trace(1, "Result=" + ret);
-      trace(1, "FilterPath=" + dialog.getFilterPath());
-      trace(1, "FileName=" + dialog.getFileName());
+    if (tracing(1)) {
+      trace(1, "Result={}", ret);
+      trace(1, "FilterPath={}", dialog.getFilterPath());
+      trace(1, "FileName={}", dialog.getFileName());
       String[] a = dialog.getFileNames();
       if (a == null) {
         trace(1, "FileNames=(null)");
@@ -320,17 +628,17 @@ public class BetterFileDialogPeer {
         trace(1, "FileNames=(empty array)");
       } else {
         for (int i = 0; i < a.length; i++)
-        trace(1, "FileNames["+i+"]="+a[i]);
+        trace(1, "FileNames[{}]={}", i, a[i]);
       }
     }
     
     if (ret == null) {
-      System.out.println("CANCELED");
+      sink.canceled();
       return;
     }
 
     if ("".equals(ret)) { // empty filename seems like a bad idea
-      System.out.println("CANCELED");
+      sink.canceled();
       return;
     }
 
@@ -344,7 +652,7 @@ public class BetterFileDialogPeer {
       // still matches an acceptable filter.
       // If the user enters "foo", we change it to "foo.jpg"
       // because that's the default extension for the filter they chose.
-      if (!BetterFileDialog.matchesFilterExtension(ret, filters)) {
+      if (!ExtensionFilter.matchesAny(ret, filters)) {
         // This happens only if there are some filters, and none of the filters
         // have wildcards, so we can be assured there is a default extension for
         // whichever filter was chosen by the user.
@@ -353,25 +661,22 @@ public class BetterFileDialogPeer {
         // use the first filter in that case.
         if (idx < 0 || idx >= filters.size()) // is this possible?
           idx = 0;
-        String ext = filters.get(idx).getDefaultExtension();
-        System.out.println("STATUS: suggest extension: " + ext);
+        String ext = filters.get(idx).defaultExtension;
+        sink.suggestExtension(ext);
       }
     }
 
     // Send results
     if (mode == MODE_SAVE) {
-      System.out.println("RESULT: " + ret);
+      sink.result(ret);
     } else if (mode == MODE_OPEN) {
-      System.out.println("RESULT: " + ret);
+      sink.result(ret);
     } else if (mode == MODE_MULTI) {
       String[] names = dialog.getFileNames();
       if (names.length == 0) { // empty array seems invalid?
-        System.out.println("CANCELED");
+        sink.canceled();
       } else {
-        System.out.println("RESULT DIR: " + dialog.getFilterPath());
-        System.out.println("RESULT COUNT: " + names.length);
-        for (String name : names)
-          System.out.println("RESULT: " + name);
+        sink.results(dialog.getFilterPath(), names);
       }
     }
 
@@ -412,9 +717,26 @@ public class BetterFileDialogPeer {
     return toName(new File(path));
   }
 
+  // Trace events go to the client, as TRACE frames from a peer process, where
+  // they are printed or recorded just like the client's own, see
+  // BetterFileDialog.trace().
+  static boolean tracing(int lvl) {
+    return (traceLevel >= lvl || traceBufferLevel >= lvl) && sink != null;
+  }
+
   protected static void trace(int lvl, String msg) {
-    if (traceLevel >= lvl)
-      System.out.println("* " + msg);
+    if (tracing(lvl))
+      sink.trace(lvl, msg);
+  }
+
+  protected static void trace(int lvl, String template, Object arg) {
+    if (tracing(lvl))
+      sink.trace(lvl, DialogTrace.format(template, new Object[] { arg }));
+  }
+
+  protected static void trace(int lvl, String template, Object arg1, Object arg2) {
+    if (tracing(lvl))
+      sink.trace(lvl, DialogTrace.format(template, new Object[] { arg1, arg2 }));
   }
 
 
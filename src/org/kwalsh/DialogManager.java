@@ -0,0 +1,181 @@
+package org.kwalsh;
+
+import java.awt.Component;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+/**
+ * DialogManager runs file dialogs for applications that may have several open
+ * at once, e.g. one per document window. Each request is given an id, and is
+ * configured entirely by its own DialogOptions, so requests from different
+ * windows or threads don't interfere with each other. Up to maxConcurrent
+ * dialogs are shown at the same time, each by its own peer process, and
+ * further requests wait their turn. For example:
+ *
+ *   DialogManager dialogs = new DialogManager(4);
+ *   dialogs.submit(DialogPeer.OPEN_FILE, window, null, opts)
+ *       .thenAccept((r) -> { if (!r.isCanceled()) window.open(r.getPath()); });
+ *
+ * Like the asynchronous methods of BetterFileDialog, requests never block the
+ * calling thread, and don't make the application modal. Set
+ * BetterFileDialog.resident and maxResidentPeers to keep peer processes around
+ * for later dialogs.
+ */
+public class DialogManager {
+
+  private final int maxConcurrent;
+  private final ArrayDeque<Pending> queue = new ArrayDeque<>();
+  private int running;
+
+  private static final class Pending {
+    final BetterFileDialog dlg;
+    final CompletableFuture<Result> done = new CompletableFuture<>();
+    Pending(BetterFileDialog dlg) { this.dlg = dlg; }
+  }
+
+  /**
+   * @param maxConcurrent - how many dialogs may be shown at the same time.
+   */
+  public DialogManager(int maxConcurrent) {
+    if (maxConcurrent < 1)
+      throw new IllegalArgumentException("maxConcurrent must be at least 1");
+    this.maxConcurrent = maxConcurrent;
+  }
+
+  /**
+   * Request a dialog. This returns immediately.
+   * @param mode - one of DialogPeer.OPEN_FILE, SAVE_FILE, OPEN_FILES, or
+   *    PICK_DIR.
+   * @param parent - used for dialog positioning, as for
+   *    BetterFileDialog.openFile(). May be null.
+   * @param initialPath - as for BetterFileDialog.openFile(). May be null.
+   * @param options - everything else about the dialog.
+   * @return a future that completes once the user is done with the dialog.
+   *    Canceling it before the dialog is shown withdraws the request.
+   */
+  public CompletableFuture<Result> submit(int mode, Component parent,
+      String initialPath, DialogOptions options) {
+    if (mode < DialogPeer.OPEN_FILE || mode > DialogPeer.PICK_DIR)
+      throw new IllegalArgumentException("Unknown dialog mode: " + mode);
+    if (options == null)
+      throw new IllegalArgumentException("Options are required");
+    Pending p = new Pending(new BetterFileDialog(mode, parent, initialPath, options));
+    synchronized(this) {
+      if (running >= maxConcurrent) {
+        if (BetterFileDialog.tracing(2))
+          BetterFileDialog.trace(2, "Dialog #{} queued behind {} others", p.dlg.id, queue.size());
+        queue.add(p);
+        return p.done;
+      }
+      running++;
+    }
+    start(p);
+    return p.done;
+  }
+
+  public CompletableFuture<Result> submit(int mode, Component parent,
+      Path initialPath, DialogOptions options) {
+    return submit(mode, parent, BetterFileDialog.toString(initialPath), options);
+  }
+
+  /** Return how many dialogs are being shown. */
+  public synchronized int getRunning() {
+    return running;
+  }
+
+  /** Return how many requests are waiting for a dialog. */
+  public synchronized int getQueued() {
+    return queue.size();
+  }
+
+  // Start p, then any waiting requests whose dialogs have already failed, e.g.
+  // because the executor rejected them. Those are taken in a loop rather than
+  // from whenComplete(), which runs them inline, one level deeper each.
+  private void start(Pending p) {
+    while (p != null) {
+      Pending cur = p;
+      BetterFileDialog dlg = cur.dlg;
+      CompletableFuture<Result> f;
+      try {
+        f = dlg.execAsync(() -> new Result(dlg));
+      } catch (Throwable e) {
+        f = CompletableFuture.failedFuture(e);
+      }
+      if (!f.isDone()) {
+        CompletableFuture<Result> started = f;
+        f.whenComplete((r, e) -> start(finished(cur, started)));
+        return;
+      }
+      p = finished(cur, f);
+    }
+  }
+
+  // One dialog is done, so complete its request, and return the next waiting
+  // request to start, if any. The next request is taken first, so that by the
+  // time anything waiting on this one runs, getRunning() and getQueued() are
+  // up to date.
+  private Pending finished(Pending p, CompletableFuture<Result> f) {
+    Pending next;
+    synchronized(this) {
+      do {
+        next = queue.poll();
+      } while (next != null && next.done.isDone()); // withdrawn
+      if (next == null)
+        running--;
+    }
+    try {
+      p.done.complete(f.join());
+    } catch (CompletionException e) {
+      p.done.completeExceptionally(e.getCause());
+    } catch (CancellationException e) {
+      p.done.completeExceptionally(e);
+    }
+    return next;
+  }
+
+  /** The outcome of one dialog. */
+  public static final class Result {
+    private final long id;
+    private final int mode;
+    private final List<Path> paths;
+
+    Result(BetterFileDialog dlg) {
+      this.id = dlg.id;
+      this.mode = dlg.mode;
+      if (mode == DialogPeer.OPEN_FILES) {
+        List<Path> list = dlg.multiPathList();
+        this.paths = list == null ? Collections.emptyList() : list;
+      } else {
+        String s = mode == DialogPeer.PICK_DIR ? dlg.dirResult : dlg.fileResult;
+        this.paths = s == null ? Collections.emptyList() :
+            Collections.singletonList(BetterFileDialog.toPath(s));
+      }
+    }
+
+    /** The id of the dialog, see DialogPeer.Request.getId(). */
+    public long getId() { return id; }
+
+    /** The mode the dialog was requested with. */
+    public int getMode() { return mode; }
+
+    /** Whether the user canceled the dialog. */
+    public boolean isCanceled() { return paths.isEmpty(); }
+
+    /** The chosen file or directory, the first if several, or null if canceled. */
+    public Path getPath() { return paths.isEmpty() ? null : paths.get(0); }
+
+    /** All the chosen files, or an empty list if canceled. */
+    public List<Path> getPaths() { return paths; }
+
+    @Override
+    public String toString() {
+      return "#" + id + ": " + (isCanceled() ? "canceled" : paths.toString());
+    }
+  }
+
+}
@@ -0,0 +1,274 @@
+package org.kwalsh;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
+
+/**
+ * DialogMetrics collects latency histograms for BetterFileDialog, split by
+ * phase, dialog mode, and backend. Each dialog records its timings once, when
+ * it finishes, so collecting costs nothing while a dialog is on its way to the
+ * screen.
+ *
+ * Phases are:
+ *   "install" - checking or extracting the peer jars.
+ *   "spawn" - starting the peer process, if one was started for this dialog.
+ *   "ready" - from peer process start until its SWT Display was created, if
+ *       the peer was started for this dialog.
+ *   "shown" - time-to-dialog, from the call until the dialog was opened.
+ *   "decision" - from the dialog being opened until the user closed it.
+ *   "result" - from the user closing the dialog until all results arrived.
+ *   "postprocess" - fixing extensions and confirming overwrite after saving.
+ *   "total" - from the call until the result was ready to return.
+ * Modes are "openfile", "openfiles", "savefile", and "pickdir". Backends are
+ * "swt" for the native dialog peer, and "swing" for the JFileChooser fallback.
+ *
+ * The same numbers are available over JMX, as the DialogMetricsMXBean named
+ * "org.kwalsh:type=DialogMetrics". It is registered along with the first
+ * dialog's timings, or earlier by calling register().
+ */
+public final class DialogMetrics {
+
+  private DialogMetrics() { }
+
+  static final int INSTALL = 0;
+  static final int SPAWN = 1;
+  static final int READY = 2;
+  static final int SHOWN = 3;
+  static final int DECISION = 4;
+  static final int RESULT = 5;
+  static final int POSTPROCESS = 6;
+  static final int TOTAL = 7;
+  static final String[] PHASES = {
+    "install", "spawn", "ready", "shown", "decision", "result", "postprocess", "total"
+  };
+
+  public static final String OBJECT_NAME = "org.kwalsh:type=DialogMetrics";
+
+  private static final ConcurrentHashMap<String, Histogram> series = new ConcurrentHashMap<>();
+  private static volatile boolean registered;
+
+  // A blank set of timings for one dialog, one per phase, in nanoseconds. A
+  // negative entry means that phase was not measured.
+  static long[] newTimings() {
+    long[] t = new long[PHASES.length];
+    Arrays.fill(t, -1);
+    return t;
+  }
+
+  // Add the timings for one dialog.
+  static void record(String mode, String backend, long[] nanos) {
+    for (int phase = 0; phase < nanos.length; phase++) {
+      if (nanos[phase] < 0)
+        continue;
+      String key = PHASES[phase] + "/" + mode + "/" + backend;
+      Histogram h = series.get(key);
+      if (h == null)
+        h = series.computeIfAbsent(key, k -> new Histogram());
+      h.add(nanos[phase] / 1000);
+    }
+    if (!registered)
+      register();
+  }
+
+  /**
+   * Register the DialogMetricsMXBean with the platform MBean server, if that
+   * hasn't already been done.
+   * @return true if the bean is registered.
+   */
+  public static synchronized boolean register() {
+    if (registered)
+      return true;
+    try {
+      ObjectName name = new ObjectName(OBJECT_NAME);
+      javax.management.MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+      if (!server.isRegistered(name))
+        server.registerMBean(new Bean(), name);
+      registered = true;
+    } catch (Exception e) {
+      BetterFileDialog.trace(1, "Can't register " + OBJECT_NAME + ": " + e.getMessage());
+    }
+    return registered;
+  }
+
+  /**
+   * Return statistics for every phase, mode, and backend that has timings so
+   * far, sorted by phase, then mode, then backend.
+   */
+  public static List<Stats> snapshot() {
+    ArrayList<Stats> ret = new ArrayList<>();
+    for (Map.Entry<String, Histogram> e : series.entrySet()) {
+      Stats s = e.getValue().stats(e.getKey().split("/"));
+      if (s != null)
+        ret.add(s);
+    }
+    ret.sort((a, b) -> {
+      int c = Integer.compare(phaseIndex(a.phase), phaseIndex(b.phase));
+      if (c == 0)
+        c = a.mode.compareTo(b.mode);
+      if (c == 0)
+        c = a.backend.compareTo(b.backend);
+      return c;
+    });
+    return ret;
+  }
+
+  /**
+   * Return statistics for one phase, mode, and backend, or null if there are
+   * no timings for it yet.
+   */
+  public static Stats snapshot(String phase, String mode, String backend) {
+    Histogram h = series.get(phase + "/" + mode + "/" + backend);
+    return h == null ? null : h.stats(new String[] { phase, mode, backend });
+  }
+
+  /** Discard all timings. */
+  public static void reset() {
+    series.clear();
+  }
+
+  private static int phaseIndex(String phase) {
+    for (int i = 0; i < PHASES.length; i++)
+      if (PHASES[i].equals(phase))
+        return i;
+    return PHASES.length;
+  }
+
+  /**
+   * Summary of the timings for one phase, mode, and backend. All times are in
+   * milliseconds. Percentiles are accurate to within about 6%.
+   */
+  public static final class Stats {
+    final String phase, mode, backend;
+    final long count;
+    final double min, mean, p50, p95, p99, max;
+
+    Stats(String phase, String mode, String backend, long count,
+        double min, double mean, double p50, double p95, double p99, double max) {
+      this.phase = phase;
+      this.mode = mode;
+      this.backend = backend;
+      this.count = count;
+      this.min = min;
+      this.mean = mean;
+      this.p50 = p50;
+      this.p95 = p95;
+      this.p99 = p99;
+      this.max = max;
+    }
+
+    /** Rebuild Stats from its JMX form, e.g. for a DialogMetricsMXBean proxy. */
+    public static Stats from(CompositeData cd) {
+      return new Stats((String)cd.get("phase"), (String)cd.get("mode"),
+          (String)cd.get("backend"), (Long)cd.get("count"),
+          (Double)cd.get("minMillis"), (Double)cd.get("meanMillis"),
+          (Double)cd.get("p50Millis"), (Double)cd.get("p95Millis"),
+          (Double)cd.get("p99Millis"), (Double)cd.get("maxMillis"));
+    }
+
+    public String getPhase() { return phase; }
+    public String getMode() { return mode; }
+    public String getBackend() { return backend; }
+    public long getCount() { return count; }
+    public double getMinMillis() { return min; }
+    public double getMeanMillis() { return mean; }
+    public double getP50Millis() { return p50; }
+    public double getP95Millis() { return p95; }
+    public double getP99Millis() { return p99; }
+    public double getMaxMillis() { return max; }
+
+    @Override
+    public String toString() {
+      return String.format("%s/%s/%s count=%d min=%.1f mean=%.1f p50=%.1f p95=%.1f p99=%.1f max=%.1f ms",
+          phase, mode, backend, count, min, mean, p50, p95, p99, max);
+    }
+  }
+
+  // A lock-free histogram of durations in microseconds. Below 16us each value
+  // has its own bucket; above that, each power of two is split into 8 buckets,
+  // so a bucket is never more than 12.5% wide.
+  static final class Histogram {
+    static final int LINEAR = 16;
+    static final int SUB_BITS = 3;
+    static final int SUB = 1 << SUB_BITS;
+    static final int BUCKETS = LINEAR + (64 - 4) * SUB;
+
+    final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    final LongAdder count = new LongAdder();
+    final LongAdder sum = new LongAdder();
+    final AtomicLong min = new AtomicLong(Long.MAX_VALUE);
+    final AtomicLong max = new AtomicLong(Long.MIN_VALUE);
+
+    static int bucket(long us) {
+      if (us < LINEAR)
+        return (int)Math.max(us, 0);
+      int e = 63 - Long.numberOfLeadingZeros(us); // e >= 4
+      return LINEAR + (e - 4) * SUB + (int)((us >>> (e - SUB_BITS)) & (SUB - 1));
+    }
+
+    // Smallest value that falls in bucket b.
+    static long lowest(int b) {
+      if (b < LINEAR)
+        return b;
+      int e = (b - LINEAR) / SUB + 4;
+      int sub = (b - LINEAR) % SUB;
+      return (long)(SUB + sub) << (e - SUB_BITS);
+    }
+
+    void add(long us) {
+      if (us < 0)
+        us = 0;
+      counts.incrementAndGet(bucket(us));
+      count.increment();
+      sum.add(us);
+      min.accumulateAndGet(us, Math::min);
+      max.accumulateAndGet(us, Math::max);
+    }
+
+    // Value at quantile q, as the middle of the bucket it falls in, but never
+    // outside the smallest and largest values actually seen.
+    long quantile(long[] c, long n, double q, long lo, long hi) {
+      long rank = Math.max(1, (long)Math.ceil(q * n));
+      long seen = 0;
+      for (int b = 0; b < c.length; b++) {
+        seen += c[b];
+        if (seen >= rank) {
+          long end = b + 1 < BUCKETS ? lowest(b + 1) - 1 : Long.MAX_VALUE;
+          long mid = lowest(b) + (end - lowest(b)) / 2;
+          return Math.max(lo, Math.min(hi, mid));
+        }
+      }
+      return hi;
+    }
+
+    Stats stats(String[] key) {
+      long[] c = new long[BUCKETS];
+      long n = 0;
+      for (int b = 0; b < BUCKETS; b++)
+        n += c[b] = counts.get(b);
+      if (n == 0 || key.length != 3)
+        return null;
+      long lo = min.get(), hi = max.get();
+      return new Stats(key[0], key[1], key[2], n,
+          lo / 1000.0, sum.sum() / 1000.0 / count.sum(),
+          quantile(c, n, 0.50, lo, hi) / 1000.0,
+          quantile(c, n, 0.95, lo, hi) / 1000.0,
+          quantile(c, n, 0.99, lo, hi) / 1000.0,
+          hi / 1000.0);
+    }
+  }
+
+  private static final class Bean implements DialogMetricsMXBean {
+    public List<Stats> getStats() { return snapshot(); }
+    public void reset() { DialogMetrics.reset(); }
+  }
+
+}
@@ -0,0 +1,18 @@
+package org.kwalsh;
+
+import java.util.List;
+
+/**
+ * JMX view of DialogMetrics, registered as "org.kwalsh:type=DialogMetrics".
+ * Each element of Stats describes one phase, mode, and backend, with its
+ * count and its min, mean, p50, p95, p99, and max times in milliseconds.
+ */
+public interface DialogMetricsMXBean {
+
+  /** Statistics for every phase, mode, and backend seen so far. */
+  List<DialogMetrics.Stats> getStats();
+
+  /** Discard all timings. */
+  void reset();
+
+}
@@ -0,0 +1,162 @@
+package org.kwalsh;
+
+import java.util.function.Consumer;
+
+/**
+ * DialogOptions holds the settings for a single dialog. It is immutable, so
+ * the same options can be shared by any number of dialogs, on any threads,
+ * and changing the static settings in BetterFileDialog later on doesn't affect
+ * dialogs already under way. For example:
+ *
+ *   DialogOptions opts = DialogOptions.builder()
+ *       .title("Open Image")
+ *       .filters(BetterFileDialog.IMAGE_FILTER, BetterFileDialog.ANY_FILTER)
+ *       .errorHandler((msg) -> window.showError(msg))
+ *       .build();
+ *
+ * A new builder starts out with the current values of BetterFileDialog's
+ * static settings, and no title or filters.
+ */
+public final class DialogOptions {
+
+  private final String title;
+  private final BetterFileDialog.Filter[] filters;
+  private final int traceLevel;
+  private final String appName;
+  private final Consumer<String> errorHandler;
+  private final long peerStartupTimeout;
+  private final long peerHeartbeatTimeout;
+  private final DialogPeer dialogPeer;
+
+  private DialogOptions(Builder b) {
+    this.title = b.title;
+    this.filters = b.filters;
+    this.traceLevel = b.traceLevel;
+    this.appName = b.appName;
+    this.errorHandler = b.errorHandler;
+    this.peerStartupTimeout = b.peerStartupTimeout;
+    this.peerHeartbeatTimeout = b.peerHeartbeatTimeout;
+    this.dialogPeer = b.dialogPeer;
+  }
+
+  /** Return a builder that starts from the current static settings. */
+  public static Builder builder() {
+    return new Builder();
+  }
+
+  /** Return a builder that starts from these options. */
+  public Builder toBuilder() {
+    Builder b = new Builder();
+    b.title = title;
+    b.filters = filters;
+    b.traceLevel = traceLevel;
+    b.appName = appName;
+    b.errorHandler = errorHandler;
+    b.peerStartupTimeout = peerStartupTimeout;
+    b.peerHeartbeatTimeout = peerHeartbeatTimeout;
+    b.dialogPeer = dialogPeer;
+    return b;
+  }
+
+  /** Title for the dialog, or null for the system default. */
+  public String getTitle() { return title; }
+
+  /** Filters the user can choose from, possibly empty. */
+  public BetterFileDialog.Filter[] getFilters() { return filters.clone(); }
+
+  /** Trace level for this dialog, see BetterFileDialog.traceLevel. */
+  public int getTraceLevel() { return traceLevel; }
+
+  /** Application name shown in the SWT menubar, or null. */
+  public String getAppName() { return appName; }
+
+  /** Where errors for this dialog are reported, or null. */
+  public Consumer<String> getErrorHandler() { return errorHandler; }
+
+  /** See BetterFileDialog.peerStartupTimeout. */
+  public long getPeerStartupTimeout() { return peerStartupTimeout; }
+
+  /** See BetterFileDialog.peerHeartbeatTimeout. */
+  public long getPeerHeartbeatTimeout() { return peerHeartbeatTimeout; }
+
+  /** Backend for this dialog, or null for the default. */
+  public DialogPeer getDialogPeer() { return dialogPeer; }
+
+  // Without copying the filters, for use within BetterFileDialog.
+  BetterFileDialog.Filter[] filters() { return filters; }
+
+  /** Builds DialogOptions. A builder is not thread-safe, but what it builds is. */
+  public static final class Builder {
+
+    private String title;
+    private BetterFileDialog.Filter[] filters = new BetterFileDialog.Filter[0];
+    private int traceLevel = BetterFileDialog.traceLevel;
+    private String appName = BetterFileDialog.appName;
+    private Consumer<String> errorHandler = BetterFileDialog.errorHandler;
+    private long peerStartupTimeout = BetterFileDialog.peerStartupTimeout;
+    private long peerHeartbeatTimeout = BetterFileDialog.peerHeartbeatTimeout;
+    private DialogPeer dialogPeer = BetterFileDialog.dialogPeer;
+
+    private Builder() { }
+
+    /** Title for the dialog, or null for the system default title. */
+    public Builder title(String title) {
+      this.title = title;
+      return this;
+    }
+
+    /**
+     * Filters the user can choose from. The first one is selected by
+     * default. Null means no filters.
+     */
+    public Builder filters(BetterFileDialog.Filter... filters) {
+      this.filters = filters == null ? new BetterFileDialog.Filter[0] : filters.clone();
+      return this;
+    }
+
+    /** Trace level for this dialog, and for the peer process showing it. */
+    public Builder traceLevel(int traceLevel) {
+      this.traceLevel = traceLevel;
+      return this;
+    }
+
+    /**
+     * Application name shown in the SWT menubar. A resident or spare peer
+     * already has its name, so a dialog whose name differs from
+     * BetterFileDialog.appName gets a peer process of its own.
+     */
+    public Builder appName(String appName) {
+      this.appName = appName;
+      return this;
+    }
+
+    /** Where errors for this dialog are reported, or null for nowhere. */
+    public Builder errorHandler(Consumer<String> errorHandler) {
+      this.errorHandler = errorHandler;
+      return this;
+    }
+
+    /** Startup deadline for the peer, in milliseconds. Zero disables it. */
+    public Builder peerStartupTimeout(long millis) {
+      this.peerStartupTimeout = millis;
+      return this;
+    }
+
+    /** Heartbeat deadline for the peer, in milliseconds. Zero disables it. */
+    public Builder peerHeartbeatTimeout(long millis) {
+      this.peerHeartbeatTimeout = millis;
+      return this;
+    }
+
+    /** Backend for this dialog, or null for the default. See DialogPeer. */
+    public Builder dialogPeer(DialogPeer dialogPeer) {
+      this.dialogPeer = dialogPeer;
+      return this;
+    }
+
+    public DialogOptions build() {
+      return new DialogOptions(this);
+    }
+  }
+
+}
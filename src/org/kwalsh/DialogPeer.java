@@ -0,0 +1,99 @@
+package org.kwalsh;
+
+import java.awt.Component;
+import java.awt.Point;
+
+/**
+ * DialogPeer is the service interface for backends that show file dialogs on
+ * behalf of BetterFileDialog. The default backend shows native SWT dialogs from
+ * a separate process, and falls back to Swing's JFileChooser if that fails. A
+ * different backend can be used by setting BetterFileDialog.dialogPeer.
+ *
+ * A backend only shows the dialog and reports what the user chose.
+ * BetterFileDialog takes care of everything else: blocking AWT/Swing input
+ * while the dialog is up, checking the results, fixing extensions and
+ * confirming overwrite after saving, metrics, and falling back to Swing if
+ * the backend reports an error.
+ */
+public interface DialogPeer {
+
+  // Dialog modes.
+  int OPEN_FILE = 1;
+  int SAVE_FILE = 2;
+  int OPEN_FILES = 3;
+  int PICK_DIR = 4;
+
+  /** A short name for this backend, e.g. "swt", used in DialogMetrics. */
+  String name();
+
+  /**
+   * Whether show() must be called on the AWT/Swing event thread, e.g. because
+   * the backend uses Swing itself. Otherwise, show() is called on a background
+   * thread while AWT/Swing input is blocked.
+   */
+  default boolean usesAWTThread() { return false; }
+
+  /**
+   * Show a dialog, blocking until the user is done with it, and report the
+   * outcome to response. The outcome is one of: response.canceled(),
+   * response.error(), response.result() for the single-result modes, or
+   * response.results() followed by one response.resultName() per chosen file
+   * for OPEN_FILES. Throwing an exception counts as an error.
+   */
+  void show(Request request, Response response) throws Exception;
+
+  /** What the application asked for. */
+  interface Request {
+    /** Unique id of this dialog, for telling concurrent dialogs apart. */
+    long getId();
+    /** All the settings for this dialog. */
+    DialogOptions getOptions();
+    /** One of OPEN_FILE, SAVE_FILE, OPEN_FILES, or PICK_DIR. */
+    int getMode();
+    /** Title for the dialog, or null for the system default. */
+    String getTitle();
+    /** Initial directory or file, or null. */
+    String getInitialPath();
+    /** Filters to offer, never null, but possibly empty. */
+    BetterFileDialog.Filter[] getFilters();
+    /** Parent component, or null. */
+    Component getParent();
+    /** Screen location of the center of the parent, or null. */
+    Point getLocation();
+  }
+
+  /** Where a backend reports the outcome of a dialog. */
+  interface Response {
+    /** The dialog is being shown to the user. */
+    void shown();
+    /** The user has closed the dialog. */
+    void closed();
+    /** The user canceled the dialog. */
+    void canceled();
+    /** The dialog failed. */
+    void error(String message);
+    /** The chosen path, for OPEN_FILE, SAVE_FILE, and PICK_DIR. */
+    void result(String path);
+    /** The directory and number of files chosen, for OPEN_FILES. */
+    void results(String dir, int count);
+    /**
+     * One file chosen for OPEN_FILES, either a name relative to the
+     * directory, or an absolute path, e.g. for a file the user typed in from
+     * elsewhere. Each is resolved against the directory, so an absolute path
+     * is used as it is.
+     */
+    void resultName(String name);
+    /** The backend already asked the user to confirm overwriting a file. */
+    void checkedOverwrite();
+    /** The default extension of the filter the user chose when saving. */
+    void suggestExtension(String ext);
+    /**
+     * Report how long a backend-specific phase took, for DialogMetrics, e.g.
+     * "install", "spawn", or "ready".
+     */
+    void timing(String phase, long nanos);
+    /** Whether the outcome is known, i.e. canceled, failed, or all results in. */
+    boolean isComplete();
+  }
+
+}
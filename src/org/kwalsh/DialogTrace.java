@@ -0,0 +1,113 @@
+package org.kwalsh;
+
+import java.io.PrintStream;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * DialogTrace keeps the most recent trace events from BetterFileDialog, and
+ * from its peer processes, in a fixed-size in-memory ring buffer. Events are
+ * recorded when BetterFileDialog.traceBufferLevel is at least their level, so
+ * diagnostics can be left on in production without printing anything. The
+ * buffer is lock-free: recording an event is one atomic increment and one
+ * array store, and messages are only formatted when the buffer is read.
+ *
+ * When a dialog fails, the buffer is written to System.err, just before the
+ * error is passed to BetterFileDialog.errorHandler, unless dumpOnError is
+ * false. An errorHandler can also call snapshot() itself.
+ */
+public final class DialogTrace {
+
+  private DialogTrace() { }
+
+  /** Number of events kept. Older events are overwritten. */
+  public static final int CAPACITY = 1024; // must be a power of two
+
+  /** Whether to write the buffer to System.err when a dialog fails. */
+  public static volatile boolean dumpOnError = true;
+
+  private static final class Event {
+    final long seq;
+    final long millis;
+    final String thread;
+    final int level;
+    final String template;
+    final Object[] args;
+    Event(long seq, int level, String template, Object[] args) {
+      this.seq = seq;
+      this.millis = System.currentTimeMillis();
+      this.thread = Thread.currentThread().getName();
+      this.level = level;
+      this.template = template;
+      this.args = args;
+    }
+  }
+
+  private static final AtomicReferenceArray<Event> ring = new AtomicReferenceArray<>(CAPACITY);
+  private static final AtomicLong next = new AtomicLong();
+  private static volatile long first; // events before this were cleared
+
+  // Record an event. Args are kept as-is, so they should not be mutated later.
+  static void record(int lvl, String template, Object[] args) {
+    long seq = next.getAndIncrement();
+    ring.set((int)(seq & (CAPACITY - 1)), new Event(seq, lvl, template, args));
+  }
+
+  // Substitute each "{}" in template with the next argument. A null args
+  // means template is a plain message.
+  static String format(String template, Object[] args) {
+    if (args == null || args.length == 0)
+      return template;
+    StringBuilder s = new StringBuilder(template.length() + 16 * args.length);
+    int a = 0, i = 0;
+    while (true) {
+      int j = template.indexOf("{}", i);
+      if (j < 0 || a >= args.length)
+        break;
+      s.append(template, i, j).append(args[a++]);
+      i = j + 2;
+    }
+    s.append(template, i, template.length());
+    return s.toString();
+  }
+
+  /**
+   * Return the buffered events, oldest first, one line per event, formatted
+   * like "12:34:56.789 [thread] 1: message". Events recorded while this runs
+   * may or may not be included.
+   */
+  public static List<String> snapshot() {
+    long end = next.get();
+    long start = Math.max(first, end - CAPACITY);
+    SimpleDateFormat time = new SimpleDateFormat("HH:mm:ss.SSS");
+    ArrayList<String> lines = new ArrayList<>((int)(end - start));
+    for (long seq = start; seq < end; seq++) {
+      Event e = ring.get((int)(seq & (CAPACITY - 1)));
+      if (e == null || e.seq != seq)
+        continue; // not yet stored, or already overwritten
+      lines.add(time.format(new Date(e.millis)) + " [" + e.thread + "] " +
+          e.level + ": " + format(e.template, e.args));
+    }
+    return lines;
+  }
+
+  /** Write the buffered events to out, oldest first. */
+  public static void dump(PrintStream out) {
+    List<String> lines = snapshot();
+    if (lines.isEmpty())
+      return;
+    out.println("BetterFileDialog: last " + lines.size() + " trace events:");
+    for (String line : lines)
+      out.println("  " + line);
+  }
+
+  /** Discard all buffered events. */
+  public static void clear() {
+    first = next.get();
+  }
+
+}
@@ -0,0 +1,93 @@
+package org.kwalsh;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+
+// Lists a dialog's initial directory on a background thread, while the dialog
+// itself is starting, so that the directory entries (and optionally their
+// attributes) are already in the OS caches by the time the dialog lists them.
+// This matters most on network file systems, where a cold listing can take
+// seconds. Nothing is kept: the listing is only done for its side effects.
+//
+// The listing gives up after a time limit, or once cancel() is called, e.g.
+// because the dialog has returned. Both are only checked between entries, so
+// a single slow system call can't be cut short, but it is left to finish on
+// its own rather than holding up anything else.
+final class DirPrefetch implements Runnable {
+
+  final String initialPath;
+  final boolean stat;
+  final long deadline; // from System.nanoTime()
+  private volatile boolean canceled;
+
+  DirPrefetch(String initialPath, boolean stat, long timeoutMillis) {
+    this.initialPath = initialPath;
+    this.stat = stat;
+    this.deadline = System.nanoTime() + timeoutMillis * 1000000L;
+  }
+
+  // Start prefetching the directory for initialPath, if any, on the executor.
+  static DirPrefetch start(String initialPath, boolean stat, long timeoutMillis) {
+    if (initialPath == null || initialPath.isEmpty() || timeoutMillis <= 0)
+      return null;
+    DirPrefetch p = new DirPrefetch(initialPath, stat, timeoutMillis);
+    try {
+      BetterFileDialog.executor.execute(p);
+    } catch (RuntimeException e) {
+      BetterFileDialog.trace(1, "Can't start prefetch: {}", e);
+      return null;
+    }
+    return p;
+  }
+
+  void cancel() {
+    canceled = true;
+  }
+
+  private boolean stopped() {
+    return canceled || System.nanoTime() - deadline > 0;
+  }
+
+  public void run() {
+    if (stopped())
+      return;
+    long t = System.nanoTime();
+    int n = 0;
+    // Finding the directory touches the file system too, so it is done here
+    // rather than on the caller's thread.
+    File dir = initialPath.endsWith(File.separator) ?
+        new File(initialPath) : BetterFileDialog.toDir(new File(initialPath));
+    if (dir == null)
+      return;
+    Path path = dir.toPath();
+    try (DirectoryStream<Path> entries = Files.newDirectoryStream(path)) {
+      for (Path entry : entries) {
+        if (stopped())
+          break;
+        if (stat) {
+          try {
+            Files.readAttributes(entry, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+          } catch (IOException e) {
+            // e.g. removed since listing, or not accessible
+          }
+        }
+        n++;
+      }
+    } catch (IOException | RuntimeException e) {
+      BetterFileDialog.trace(2, "Can't prefetch {}: {}", path, e);
+      return;
+    }
+    if (BetterFileDialog.tracing(2)) {
+      long ms = (System.nanoTime() - t) / 1000000;
+      BetterFileDialog.trace(2, "Prefetched " + n + " entries of " + path +
+          " in " + ms + " ms" +
+          (canceled ? " (canceled)" : stopped() ? " (timed out)" : ""));
+    }
+  }
+
+}
@@ -0,0 +1,222 @@
+package org.kwalsh;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.List;
+
+// The core of BetterFileDialog.Filter: a named set of file name extensions,
+// with the description and case permutations SWT wants, and extension
+// matching. This uses nothing outside java.base, so the peer process, which
+// only ever needs this part, doesn't have to load any of AWT/Swing, or
+// BetterFileDialog itself. Filter wraps one of these, and adds what Swing's
+// JFileChooser and java.io need.
+//
+// Like Filter, this is immutable. The description, the case permutations, and
+// the matcher are only built when first needed, and a filter decoded in the
+// peer comes with the first two already computed by the client.
+final class ExtensionFilter {
+
+  final String name;
+  private final String[] extensions; // at least one entry, all non-null, mixed case
+  final boolean wildcard;
+  final String defaultExtension;
+  private String description; // created on first use
+  private String permutations; // semi-colon delineated case list of case-permuted extensions, created on first use
+  private volatile ExtensionMatcher matcher; // created on first use, never for wildcard filters
+
+  // Construct a filter from extensions already in normal form, and optionally
+  // the description and permutations, e.g. as computed by the client and sent
+  // to the peer. Those that are null are computed when first needed.
+  ExtensionFilter(String name, String[] extensions, String description, String permutations) {
+    if (name == null)
+      throw new IllegalArgumentException("Name must not be null");
+    this.name = name;
+    this.extensions = extensions;
+    this.description = description;
+    this.permutations = permutations;
+    boolean wild = false;
+    String dflt = null;
+    for (String ext : extensions) {
+      if ("*".equals(ext))
+        wild = true;
+      else if (dflt == null)
+        dflt = ext;
+    }
+    wildcard = wild;
+    defaultExtension = dflt;
+  }
+
+  // Remove any leading "." or "*." from each extension, and use "*" in place
+  // of null. An empty list becomes just "*".
+  static String[] normalize(String[] extension) {
+    if (extension == null || extension.length == 0)
+      return new String[] { "*" };
+    String[] extensions = new String[extension.length];
+    for (int i = 0; i < extension.length; i++) {
+      String ext = extension[i];
+      if (ext == null)
+        ext = "*";
+      else if (ext.startsWith("*."))
+        ext = ext.substring(2);
+      else if (ext.startsWith("."))
+        ext = ext.substring(1);
+      extensions[i] = ext; // mixed case
+    }
+    return extensions;
+  }
+
+  // The filter used when none are given.
+  static final ExtensionFilter ANY = new ExtensionFilter("All Files", new String[] { "*" }, null, null);
+
+  @Override
+  public boolean equals(Object o) {
+    if (o == this)
+      return true;
+    if (!(o instanceof ExtensionFilter))
+      return false;
+    ExtensionFilter f = (ExtensionFilter)o;
+    return name.equals(f.name) && Arrays.equals(extensions, f.extensions);
+  }
+
+  @Override
+  public int hashCode() {
+    return 31 * name.hashCode() + Arrays.hashCode(extensions);
+  }
+
+  ExtensionMatcher matcher() {
+    ExtensionMatcher m = matcher;
+    if (m == null)
+      matcher = m = new ExtensionMatcher(extensions);
+    return m;
+  }
+
+  private String describe() {
+    StringBuilder s = new StringBuilder(name.length() + 8 * extensions.length);
+    s.append(name).append(" (*.").append(extensions[0]);
+    for (int i = 1; i < extensions.length; i++)
+      s.append(", *.").append(extensions[i]); // mixed case
+    return s.append(')').toString();
+  }
+
+  private String permute() {
+    if (wildcard)
+      return "*"; // "*.*" doesn't work for files with no extension on Linux
+    // generate case permutations
+    StringBuilder s = new StringBuilder();
+    for (String ext : extensions) {
+      if (ext.length() > 4) {
+        append(s, ext); // mixed case
+        String lower = ext.toLowerCase();
+        if (!lower.equals(ext))
+          append(s, lower);
+        String upper = ext.toUpperCase();
+        if (!upper.equals(ext))
+          append(s, upper);
+        String title = titleCase(ext);
+        if (!title.equals(ext) && !title.equals(upper) && !title.equals(lower))
+          append(s, title);
+      } else {
+        // permute case
+        char[] word = ext.toLowerCase().toCharArray();
+        int n = 1 << word.length;
+        for (int i = 0; i < n; i++)
+          appendCasePermutation(s, word, i);
+      }
+    }
+    return s.toString();
+  }
+
+  private static void append(StringBuilder s, String ext) {
+    if (s.length() > 0)
+      s.append(';');
+    s.append("*.").append(ext);
+  }
+
+  private static String titleCase(String ext) {
+    char[] word = ext.toCharArray();
+    int n = word.length;
+    boolean sawWordBreak = true;
+    for (int i = 0; i < n; i++) {
+      char l = Character.toLowerCase(word[i]);
+      char u = Character.toUpperCase(word[i]);
+      if (l == u) {
+        sawWordBreak = true;
+      } else if (sawWordBreak) {
+        word[i] = u;
+        sawWordBreak = false;
+      } else {
+        word[i] = l;
+      }
+    }
+    return new String(word);
+  }
+
+  // Append the permutation of word selected by bits, unless it would set the
+  // case of a char that has no upper case (so that each is only added once).
+  private static void appendCasePermutation(StringBuilder s, char[] word, int bits) {
+    int n = word.length;
+    for (int i = 0; i < n; i++)
+      if ((bits & (1 << i)) != 0 && Character.toUpperCase(word[i]) == word[i])
+        return;
+    if (s.length() > 0)
+      s.append(';');
+    s.append("*.");
+    for (int i = 0; i < n; i++)
+      s.append((bits & (1 << i)) != 0 ? Character.toUpperCase(word[i]) : word[i]);
+  }
+
+  // See Filter.getDescription().
+  String getDescription() {
+    String d = description;
+    if (d == null)
+      description = d = describe();
+    return d;
+  }
+
+  // See Filter.getExtensions().
+  String getExtensions() {
+    String p = permutations;
+    if (p == null)
+      permutations = p = permute();
+    return p;
+  }
+
+  // See Filter.acceptExtension().
+  boolean acceptExtension(String path) {
+    if (path == null)
+      return false;
+    if (wildcard)
+      return true;
+    int from = path.lastIndexOf(File.separator) + 1;
+    // Empty name can't possibly match an extension, and the first char of
+    // the name can't be the dot.
+    return matcher().matches(path, from, path.length(), from + 1);
+  }
+
+  // Append this filter to a request for the peer, as the name, description,
+  // permutations, and extensions, so the peer need not compute anything.
+  // Extensions are separated by "/", which can't appear in a file name.
+  void encodeForPeer(List<String> args) {
+    args.add(name);
+    args.add(getDescription());
+    args.add(getExtensions());
+    args.add(String.join("/", extensions));
+  }
+
+  // Inverse of encodeForPeer(), starting at args[i].
+  static ExtensionFilter decodeForPeer(String[] args, int i) {
+    return new ExtensionFilter(args[i], args[i+3].split("/", -1), args[i+1], args[i+2]);
+  }
+
+  // Check if a path matches the extension of at least one of the filters, as
+  // per acceptExtension(). An empty list of filters matches everything.
+  static boolean matchesAny(String path, List<ExtensionFilter> filters) {
+    if (filters == null || filters.size() == 0)
+      return true;
+    for (ExtensionFilter f : filters)
+      if (f.acceptExtension(path))
+        return true;
+    return false;
+  }
+
+}
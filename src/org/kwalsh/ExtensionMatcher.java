@@ -0,0 +1,77 @@
+package org.kwalsh;
+
+// A precompiled, immutable matcher for a set of file name extensions, used by
+// Filter. The extensions, each with its leading dot, are stored reversed and
+// case-folded in a trie, so a name is matched by walking backwards from its
+// last character. This handles multi-part extensions like "tar.gz" naturally,
+// and matching never allocates. Case folding is done one char at a time with
+// Character.toLowerCase(), so it does not depend on the default locale.
+final class ExtensionMatcher {
+
+  private static final class Node {
+    char[] keys = new char[0];
+    Node[] next = new Node[0];
+    boolean terminal; // a whole ".ext" ends here (i.e. we just matched a dot)
+
+    Node child(char c) {
+      char[] k = keys;
+      for (int i = 0; i < k.length; i++)
+        if (k[i] == c)
+          return next[i];
+      return null;
+    }
+
+    Node add(char c) {
+      Node n = child(c);
+      if (n != null)
+        return n;
+      int len = keys.length;
+      char[] k = new char[len + 1];
+      Node[] x = new Node[len + 1];
+      System.arraycopy(keys, 0, k, 0, len);
+      System.arraycopy(next, 0, x, 0, len);
+      k[len] = c;
+      x[len] = n = new Node();
+      keys = k;
+      next = x;
+      return n;
+    }
+  }
+
+  private final Node root = new Node();
+
+  // Extensions should not include the leading dot, nor any wildcards.
+  ExtensionMatcher(String... extensions) {
+    for (String ext : extensions) {
+      Node n = root;
+      for (int i = ext.length() - 1; i >= 0; i--)
+        n = n.add(fold(ext.charAt(i)));
+      n = n.add('.');
+      n.terminal = true;
+    }
+  }
+
+  private static char fold(char c) {
+    return Character.toLowerCase(c);
+  }
+
+  /**
+   * Check whether s[from..to) ends with a dot followed by one of the
+   * extensions, ignoring case.
+   * @param minDot - the smallest index at which the dot may appear. Use from
+   *    to accept names like ".gz", or from+1 to require at least one character
+   *    before the dot.
+   */
+  boolean matches(CharSequence s, int from, int to, int minDot) {
+    Node n = root;
+    for (int i = to - 1; i >= from; i--) {
+      n = n.child(fold(s.charAt(i)));
+      if (n == null)
+        return false;
+      if (n.terminal && i >= minDot)
+        return true;
+    }
+    return false;
+  }
+
+}
@@ -0,0 +1,246 @@
+package org.kwalsh;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.DosFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import javax.swing.Icon;
+import javax.swing.filechooser.FileSystemView;
+
+// A FileSystemView for the Swing fallback chooser that lists directories with
+// NIO. The default view lists a directory with File.listFiles(), after which
+// JFileChooser, its FileView, and Filter.accept() each stat every entry again,
+// one call at a time (isDirectory(), isHidden(), ...). That is painfully slow
+// for huge directories and network mounts. Here, each entry's attributes are
+// read once, in a single readAttributes() call, while listing, and kept in the
+// returned NioFile objects, which answer isDirectory() and friends from those
+// attributes.
+//
+// Listings are cached per directory, dropping the least recently used, up to
+// CACHE_DIRS directories and CACHE_ENTRIES entries in total. A cached listing
+// is reused while the directory's modification time is unchanged, for up to
+// CACHE_MILLIS.
+//
+// JFileChooser calls getFiles() from its own loader thread, not the AWT/Swing
+// thread, and interrupts that thread when the user moves on to a different
+// directory. The listing checks for that every CHUNK entries and gives up, so
+// an abandoned huge directory doesn't hold up the next one.
+//
+// Everything else, e.g. icons, drives, and special folders such as Windows'
+// "This PC", is left to the platform's own view.
+final class NioFileSystemView extends FileSystemView {
+
+  static final int CACHE_DIRS = 16;
+  static final int CACHE_ENTRIES = 200000;
+  static final long CACHE_MILLIS = 10000;
+  static final int CHUNK = 256;
+
+  private static final boolean dosAttributes =
+      System.getProperty("os.name").toLowerCase().startsWith("windows");
+
+  final FileSystemView platform;
+
+  NioFileSystemView(FileSystemView platform) {
+    this.platform = platform;
+  }
+
+  static NioFileSystemView instance;
+
+  static synchronized NioFileSystemView get() {
+    if (instance == null)
+      instance = new NioFileSystemView(FileSystemView.getFileSystemView());
+    return instance;
+  }
+
+  // A directory entry, with the attributes read while listing it.
+  static final class NioFile extends File {
+    private static final long serialVersionUID = 1L;
+    private final boolean directory, regular, hidden;
+    private final long length, lastModified;
+
+    NioFile(File dir, String name, BasicFileAttributes attrs, boolean hidden) {
+      super(dir, name);
+      this.directory = attrs.isDirectory();
+      this.regular = attrs.isRegularFile();
+      this.length = attrs.size();
+      this.lastModified = attrs.lastModifiedTime().toMillis();
+      this.hidden = hidden;
+    }
+
+    @Override public boolean exists() { return true; }
+    @Override public boolean isDirectory() { return directory; }
+    @Override public boolean isFile() { return regular; }
+    @Override public boolean isHidden() { return hidden; }
+    @Override public long length() { return length; }
+    @Override public long lastModified() { return lastModified; }
+  }
+
+  private static final class Listing {
+    final NioFile[] entries;
+    final FileTime modified;
+    final long listedMillis;
+    Listing(NioFile[] entries, FileTime modified) {
+      this.entries = entries;
+      this.modified = modified;
+      this.listedMillis = System.currentTimeMillis();
+    }
+  }
+
+  // Most recently used last.
+  private final LinkedHashMap<Path, Listing> cache = new LinkedHashMap<>(32, 0.75f, true);
+  private int cachedEntries;
+
+  private synchronized Listing cached(Path dir, FileTime modified) {
+    Listing l = cache.get(dir);
+    if (l == null)
+      return null;
+    if (l.modified.equals(modified) &&
+        System.currentTimeMillis() - l.listedMillis < CACHE_MILLIS)
+      return l;
+    cache.remove(dir);
+    cachedEntries -= l.entries.length;
+    return null;
+  }
+
+  private synchronized void cache(Path dir, Listing l) {
+    Listing old = cache.put(dir, l);
+    if (old != null)
+      cachedEntries -= old.entries.length;
+    cachedEntries += l.entries.length;
+    Iterator<Listing> lru = cache.values().iterator();
+    while (cache.size() > 1 && (cache.size() > CACHE_DIRS || cachedEntries > CACHE_ENTRIES)) {
+      cachedEntries -= lru.next().entries.length;
+      lru.remove();
+    }
+  }
+
+  synchronized void clearCache() {
+    cache.clear();
+    cachedEntries = 0;
+  }
+
+  // List dir, or return null if it should be left to the platform's view, or
+  // if the listing was interrupted.
+  private NioFile[] list(File dir) {
+    if (!platform.isFileSystem(dir))
+      return null;
+    Path path;
+    try {
+      path = dir.toPath();
+    } catch (InvalidPathException e) {
+      return null;
+    }
+    FileTime modified;
+    try {
+      modified = Files.getLastModifiedTime(path);
+    } catch (IOException e) {
+      return null;
+    }
+    Listing l = cached(path, modified);
+    if (l != null)
+      return l.entries;
+
+    long t = System.nanoTime();
+    ArrayList<NioFile> entries = new ArrayList<>();
+    try (DirectoryStream<Path> stream = Files.newDirectoryStream(path)) {
+      for (Path p : stream) {
+        if (entries.size() % CHUNK == 0 && Thread.currentThread().isInterrupted())
+          return null;
+        String name = p.getFileName().toString();
+        BasicFileAttributes attrs;
+        boolean hidden;
+        try {
+          if (dosAttributes) {
+            DosFileAttributes dos = Files.readAttributes(p, DosFileAttributes.class);
+            attrs = dos;
+            hidden = dos.isHidden();
+          } else {
+            attrs = Files.readAttributes(p, BasicFileAttributes.class);
+            hidden = name.startsWith(".");
+          }
+        } catch (IOException e) {
+          // e.g. a dangling link, which File.listFiles() would still show
+          try {
+            attrs = Files.readAttributes(p, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+          } catch (IOException e2) {
+            continue; // gone since listing
+          }
+          hidden = !dosAttributes && name.startsWith(".");
+        }
+        entries.add(new NioFile(dir, name, attrs, hidden));
+      }
+    } catch (IOException | RuntimeException e) {
+      BetterFileDialog.trace(2, "Can't list {}: {}", path, e);
+      return null;
+    }
+    NioFile[] a = entries.toArray(new NioFile[0]);
+    cache(path, new Listing(a, modified));
+    if (BetterFileDialog.tracing(3))
+      BetterFileDialog.trace(3, "Listed {} entries in {} ms", a.length,
+          (System.nanoTime() - t) / 1000000);
+    return a;
+  }
+
+  @Override
+  public File[] getFiles(File dir, boolean useFileHiding) {
+    NioFile[] all = list(dir);
+    if (all == null)
+      return Thread.currentThread().isInterrupted() ? new File[0] :
+          platform.getFiles(dir, useFileHiding);
+    if (!useFileHiding)
+      return all.clone();
+    ArrayList<File> shown = new ArrayList<>(all.length);
+    for (NioFile f : all)
+      if (!f.isHidden())
+        shown.add(f);
+    return shown.toArray(new File[0]);
+  }
+
+  @Override
+  public Boolean isTraversable(File f) {
+    if (f instanceof NioFile)
+      return f.isDirectory();
+    return platform.isTraversable(f);
+  }
+
+  @Override
+  public boolean isHiddenFile(File f) {
+    if (f instanceof NioFile)
+      return f.isHidden();
+    return platform.isHiddenFile(f);
+  }
+
+  // The rest is all up to the platform.
+
+  @Override public File createNewFolder(File dir) throws IOException { return platform.createNewFolder(dir); }
+  @Override public boolean isRoot(File f) { return platform.isRoot(f); }
+  @Override public String getSystemDisplayName(File f) { return platform.getSystemDisplayName(f); }
+  @Override public String getSystemTypeDescription(File f) { return platform.getSystemTypeDescription(f); }
+  @Override public Icon getSystemIcon(File f) { return platform.getSystemIcon(f); }
+  @Override public boolean isParent(File dir, File f) { return platform.isParent(dir, f); }
+  @Override public File getChild(File parent, String name) { return platform.getChild(parent, name); }
+  @Override public boolean isFileSystem(File f) { return platform.isFileSystem(f); }
+  @Override public boolean isFileSystemRoot(File dir) { return platform.isFileSystemRoot(dir); }
+  @Override public boolean isDrive(File dir) { return platform.isDrive(dir); }
+  @Override public boolean isFloppyDrive(File dir) { return platform.isFloppyDrive(dir); }
+  @Override public boolean isComputerNode(File dir) { return platform.isComputerNode(dir); }
+  @Override public File[] getRoots() { return platform.getRoots(); }
+  @Override public File getHomeDirectory() { return platform.getHomeDirectory(); }
+  @Override public File getDefaultDirectory() { return platform.getDefaultDirectory(); }
+  @Override public File createFileObject(File dir, String filename) { return platform.createFileObject(dir, filename); }
+  @Override public File createFileObject(String path) { return platform.createFileObject(path); }
+  @Override public File getParentDirectory(File dir) { return platform.getParentDirectory(dir); }
+  @Override public File[] getChooserComboBoxFiles() { return platform.getChooserComboBoxFiles(); }
+  @Override public boolean isLink(File f) { return platform.isLink(f); }
+  @Override public File getLinkLocation(File f) throws java.io.FileNotFoundException { return platform.getLinkLocation(f); }
+
+}
@@ -0,0 +1,36 @@
+package org.kwalsh;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.AbstractList;
+import java.util.RandomAccess;
+
+// A read-only list of chosen files, kept as the directory plus the bare names
+// returned by the dialog. Each Path is only created when an element is
+// accessed, so a selection of tens of thousands of files costs little more
+// than the names themselves. As DialogPeer.Response.resultName() allows, a name
+// may instead be an absolute path, which Path.resolve() then uses as it is.
+final class PathList extends AbstractList<Path> implements RandomAccess {
+
+  private final String dir;
+  private final String[] names;
+  private Path dirPath; // created on first access
+
+  PathList(String dir, String[] names) {
+    this.dir = dir;
+    this.names = names;
+  }
+
+  @Override
+  public Path get(int i) {
+    if (dirPath == null)
+      dirPath = Paths.get(dir);
+    return dirPath.resolve(names[i]);
+  }
+
+  @Override
+  public int size() {
+    return names.length;
+  }
+
+}
@@ -0,0 +1,191 @@
+package org.kwalsh;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.function.BooleanSupplier;
+
+// A dedicated control channel between the client and a peer process, over a
+// Unix-domain socket, used in place of the peer's stdin and stdout when
+// BetterFileDialog.usePeerControlChannel is set. Frames are just as they would
+// be on stdin and stdout, see PeerProtocol, but stdout is then left for
+// diagnostics, see PeerProcess.
+//
+// The client listens on a socket in a new temporary directory, which only the
+// user can get into, and passes its path to the peer with --control. The peer
+// connects as soon as it starts. The client accepts the connection when it
+// first needs it, then deletes the socket and directory, so nobody else can
+// connect later on.
+final class PeerChannel {
+
+  private Path dir; // holds the socket until the peer connects
+  private ServerSocketChannel server;
+  private volatile SocketChannel channel;
+  // Held while waiting for the peer, so that close() can still get in, and
+  // end the wait, e.g. when the watchdog gives up on the peer.
+  private final Object acceptLock = new Object();
+
+  private PeerChannel(Path dir, ServerSocketChannel server) {
+    this.dir = dir;
+    this.server = server;
+  }
+
+  private PeerChannel(SocketChannel channel) {
+    this.channel = channel;
+  }
+
+  // Start listening for a peer. This fails if Unix-domain sockets aren't
+  // supported here, e.g. on Windows before version 10.
+  static PeerChannel listen() throws IOException {
+    Path dir = Files.createTempDirectory("bfd");
+    try {
+      ServerSocketChannel server = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+      try {
+        server.bind(UnixDomainSocketAddress.of(dir.resolve("control")));
+      } catch (IOException e) {
+        server.close();
+        throw e;
+      }
+      return new PeerChannel(dir, server);
+    } catch (IOException | UnsupportedOperationException e) {
+      Files.deleteIfExists(dir.resolve("control"));
+      Files.deleteIfExists(dir);
+      throw new IOException("can't create control socket: " + e.getMessage());
+    }
+  }
+
+  // Connect to the client, from the peer.
+  static PeerChannel connect(String path) throws IOException {
+    return new PeerChannel(SocketChannel.open(UnixDomainSocketAddress.of(path)));
+  }
+
+  // The path to pass to the peer.
+  String path() {
+    return dir.resolve("control").toString();
+  }
+
+  boolean isConnected() {
+    return channel != null;
+  }
+
+  // Wait for the peer to connect, giving up if alive says it has gone.
+  void accept(BooleanSupplier alive) throws IOException {
+    synchronized(acceptLock) {
+      if (channel != null)
+        return;
+      ServerSocketChannel server;
+      synchronized(this) {
+        server = this.server;
+      }
+      if (server == null)
+        throw new EOFException("peer never connected");
+      try (Selector sel = Selector.open()) {
+        server.configureBlocking(false);
+        server.register(sel, SelectionKey.OP_ACCEPT);
+        SocketChannel ch;
+        while ((ch = server.accept()) == null) {
+          if (!alive.getAsBoolean())
+            throw new EOFException("peer exited before connecting");
+          sel.select(100);
+        }
+        ch.configureBlocking(true);
+        channel = ch;
+      } finally {
+        unlisten();
+      }
+    }
+  }
+
+  private synchronized void unlisten() {
+    if (server == null)
+      return;
+    try {
+      server.close();
+      Files.deleteIfExists(dir.resolve("control"));
+      Files.deleteIfExists(dir);
+    } catch (IOException e) {
+      e.printStackTrace();
+    }
+    server = null;
+    dir = null;
+  }
+
+  // Tell the other side there will be no more frames, like closing a pipe.
+  void shutdownOutput() {
+    SocketChannel ch = channel;
+    if (ch == null) {
+      unlisten();
+      return;
+    }
+    try { ch.shutdownOutput(); }
+    catch (IOException e) { } // already gone
+  }
+
+  void close() {
+    unlisten();
+    SocketChannel ch = channel;
+    if (ch != null) {
+      try { ch.close(); }
+      catch (IOException e) { } // already gone
+    }
+  }
+
+  private SocketChannel channel() throws IOException {
+    SocketChannel ch = channel;
+    if (ch == null)
+      throw new IOException("peer is not connected");
+    return ch;
+  }
+
+  // Unlike the streams from Channels.newInputStream() and newOutputStream(),
+  // these don't share a lock, so a blocked read doesn't hold up writes.
+  InputStream input() {
+    return new InputStream() {
+      @Override
+      public int read() throws IOException {
+        byte[] b = new byte[1];
+        return read(b, 0, 1) < 0 ? -1 : (b[0] & 0xff);
+      }
+
+      @Override
+      public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0)
+          return 0;
+        return channel().read(ByteBuffer.wrap(b, off, len));
+      }
+    };
+  }
+
+  OutputStream output() {
+    return new OutputStream() {
+      @Override
+      public void write(int b) throws IOException {
+        write(new byte[] { (byte)b }, 0, 1);
+      }
+
+      @Override
+      public void write(byte[] b, int off, int len) throws IOException {
+        ByteBuffer bb = ByteBuffer.wrap(b, off, len);
+        SocketChannel ch = channel();
+        while (bb.hasRemaining())
+          ch.write(bb);
+      }
+
+      @Override
+      public void close() {
+        shutdownOutput();
+      }
+    };
+  }
+
+}
@@ -0,0 +1,336 @@
+package org.kwalsh;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.channels.ClosedChannelException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+// A running BetterFileDialogPeer process, along with the pipes used to talk to
+// it. See PeerProtocol for the format of messages in both directions.
+//
+// * A one-shot peer gets a single request as a REQUEST frame on stdin, answers
+//   on stdout, sends EXIT, then exits.
+//
+// * A resident peer (started with --resident) keeps its SWT Display and Shell
+//   alive and serves many requests in turn. Each request is written to the
+//   peer's stdin as a REQUEST frame, just as for a one-shot peer. The peer
+//   answers on stdout and ends each answer with DONE. It exits when stdin is
+//   closed, or after being idle for too long. A resident peer sends READY
+//   once its Display has been created, and so does a one-shot peer.
+//
+// * While a dialog is up, the peer sends HEARTBEAT every second. These are
+//   consumed by next(). PeerWatchdog uses them, and READY, to kill peers that
+//   hang while we wait for them.
+//
+// * With BetterFileDialog.usePeerControlChannel, frames go over a PeerChannel
+//   rather than stdin and stdout, and anything the peer prints on stdout or
+//   stderr is diagnostics, see Diagnostics. If there are no Unix-domain
+//   sockets, frames stay on stdin and stdout, but stderr is still drained as
+//   diagnostics. Otherwise, the peer's stderr goes straight to ours.
+class PeerProcess {
+
+  final Process process;
+  final PeerProtocol.Reader in;
+  final PeerProtocol.Writer out;
+  final boolean resident;
+  final PeerChannel control; // or null, for stdin and stdout
+  final Diagnostics diagnostics; // or null, if stderr is inherited
+  private boolean connected; // saw MAGIC and HELLO
+  private volatile boolean ready;
+  int skipped; // bytes of noise seen before MAGIC
+
+  // For DialogMetrics, from System.nanoTime().
+  long startNanos; // when we began to spawn the process
+  long spawnNanos; // how long spawning took
+  long readyNanos; // when READY arrived, or 0
+
+  // For PeerWatchdog, from System.nanoTime().
+  volatile long heardNanos; // when the last frame arrived
+  volatile long waitNanos; // when a reader began waiting in next(), or 0
+  volatile String hung; // why the watchdog killed the peer, or null
+  // Deadlines in milliseconds, set from each dialog's DialogOptions.
+  volatile long startupTimeout = BetterFileDialog.peerStartupTimeout;
+  volatile long heartbeatTimeout = BetterFileDialog.peerHeartbeatTimeout;
+
+  protected PeerProcess(Process process, boolean resident) {
+    this(process, resident, null, false);
+  }
+
+  protected PeerProcess(Process process, boolean resident, PeerChannel control,
+      boolean drain) {
+    this.process = process;
+    this.resident = resident;
+    this.control = control;
+    if (control != null) {
+      this.in = new PeerProtocol.Reader(control.input());
+      this.out = new PeerProtocol.Writer(control.output());
+      this.diagnostics = new Diagnostics(process.getInputStream(), pid());
+    } else {
+      this.in = new PeerProtocol.Reader(process.getInputStream());
+      this.out = new PeerProtocol.Writer(process.getOutputStream());
+      this.diagnostics = drain ? new Diagnostics(process.getErrorStream(), pid()) : null;
+    }
+  }
+
+  static PeerProcess start(List<String> cmd, boolean resident) throws IOException {
+    long t = System.nanoTime();
+    boolean separate = BetterFileDialog.usePeerControlChannel;
+    PeerChannel control = null;
+    if (separate) {
+      try {
+        control = PeerChannel.listen();
+      } catch (IOException e) {
+        BetterFileDialog.trace(1, "Using stdin and stdout instead: {}", e.getMessage());
+      }
+    }
+    ProcessBuilder pb;
+    if (control != null) {
+      ArrayList<String> c = new ArrayList<>(cmd);
+      c.add("--control");
+      c.add(control.path());
+      pb = new ProcessBuilder(c);
+      // Neither stdout nor stderr carries frames, so both are diagnostics.
+      pb.redirectErrorStream(true);
+    } else {
+      pb = new ProcessBuilder(cmd);
+      // Only frames may appear on stdout, so stderr can't be merged into it.
+      if (!separate)
+        pb.redirectError(ProcessBuilder.Redirect.INHERIT);
+    }
+    Process process;
+    try {
+      process = pb.start();
+    } catch (IOException e) {
+      if (control != null)
+        control.close();
+      throw e;
+    }
+    if (control != null)
+      process.getOutputStream().close(); // stdin isn't used
+    PeerProcess p = new PeerProcess(process, resident, control, separate);
+    p.startNanos = t;
+    p.spawnNanos = System.nanoTime() - t;
+    PeerWatchdog.watch(p);
+    return p;
+  }
+
+  boolean isReady() {
+    return ready;
+  }
+
+  long pid() {
+    try { return process.pid(); }
+    catch (UnsupportedOperationException e) { return -1; }
+  }
+
+  boolean isAlive() {
+    return process.isAlive();
+  }
+
+  // Send one request to the peer. With a control channel, this first waits
+  // for the peer to connect, which the watchdog covers just as for next().
+  void send(List<String> args) throws IOException {
+    if (control != null && !control.isConnected()) {
+      waitNanos = System.nanoTime();
+      try {
+        control.accept(process::isAlive);
+      } catch (IOException e) {
+        throw failure(e);
+      } finally {
+        waitNanos = 0;
+      }
+    }
+    try {
+      out.send(PeerProtocol.REQUEST, args);
+    } catch (IOException e) {
+      throw new PeerExitedException("can't send request, peer has exited");
+    }
+  }
+
+  // Read the next frame of peer output, and return its type. The payload can
+  // then be read from in.
+  synchronized int next() throws IOException {
+    waitNanos = System.nanoTime();
+    try {
+      if (!connected) {
+        if (control != null)
+          control.accept(process::isAlive);
+        skipped = in.skipMagic();
+        if (in.next() != PeerProtocol.HELLO)
+          throw new IOException("peer did not say hello");
+        int v = in.intValue();
+        if (v != PeerProtocol.VERSION)
+          throw new IOException("peer speaks protocol version " + v +
+              ", expected " + PeerProtocol.VERSION);
+        connected = true;
+      }
+      int type;
+      do {
+        type = in.next();
+        heardNanos = System.nanoTime();
+      } while (type == PeerProtocol.HEARTBEAT);
+      if (type == PeerProtocol.READY && !ready) {
+        ready = true;
+        readyNanos = heardNanos;
+      }
+      return type;
+    } catch (IOException e) {
+      throw failure(e);
+    } finally {
+      waitNanos = 0;
+    }
+  }
+
+  // Explain why reading from, or connecting to, the peer failed.
+  private IOException failure(IOException e) {
+    if (hung != null)
+      return new PeerHungException(hung);
+    if (e instanceof EOFException || e instanceof ClosedChannelException) {
+      String last = diagnostics == null ? null : diagnostics.dump();
+      return new PeerExitedException("peer exited unexpectedly" +
+          (last == null ? "" : ": " + last));
+    }
+    return e;
+  }
+
+  // Wait for a resident peer to finish starting up. Output read along the way,
+  // other than errors, is discarded. This must not be used while a request is
+  // in progress, as it would consume the answer.
+  synchronized void awaitReady() throws IOException {
+    while (!ready) {
+      int type = next();
+      if (type == PeerProtocol.ERROR)
+        throw new IOException(in.string());
+    }
+  }
+
+  // Ask the peer to exit, and make sure it does. It gets a little time to exit
+  // on its own, then PeerWatchdog kills it forcibly. Anything it started goes
+  // too, as that could otherwise hold our end of its stdout open.
+  void destroy() {
+    out.close();
+    if (control != null)
+      control.close();
+    process.descendants().forEach(ProcessHandle::destroy);
+    process.destroy();
+    PeerWatchdog.reap(this);
+  }
+
+  void destroyForcibly() {
+    process.descendants().forEach(ProcessHandle::destroyForcibly);
+    process.destroyForcibly();
+  }
+
+  // Wait up to timeoutMillis for the process to exit, forcibly killing it if
+  // it hasn't. Returns whether it had to be killed.
+  boolean awaitExit(long timeoutMillis) {
+    try {
+      if (process.waitFor(timeoutMillis, TimeUnit.MILLISECONDS))
+        return false;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    destroyForcibly();
+    return true;
+  }
+
+  // Drains what the peer prints, on a thread of its own, so the peer never
+  // blocks on a full pipe however much it prints, and none of it can get mixed
+  // up with frames. Each line is traced, and the last MAX_LINES are kept, each
+  // cut short at MAX_LINE_CHARS, in case the peer exits unexpectedly.
+  static final class Diagnostics {
+    static final int MAX_LINES = 50;
+    static final int MAX_LINE_CHARS = 1000;
+
+    private final ArrayDeque<String> lines = new ArrayDeque<>();
+    private final Thread thread;
+    private final long pid;
+
+    Diagnostics(InputStream in, long pid) {
+      this.pid = pid;
+      thread = new Thread(() -> drain(in), "Peer Diagnostics (" + pid + ")");
+      thread.setDaemon(true);
+      thread.start();
+    }
+
+    private void drain(InputStream in) {
+      StringBuilder line = new StringBuilder();
+      boolean cut = false;
+      try (Reader r = new InputStreamReader(in)) {
+        char[] buf = new char[4096];
+        int n;
+        while ((n = r.read(buf)) >= 0) {
+          for (int i = 0; i < n; i++) {
+            char c = buf[i];
+            if (c == '\n') {
+              add(line, cut);
+              line.setLength(0);
+              cut = false;
+            } else if (c == '\r') {
+              continue;
+            } else if (line.length() < MAX_LINE_CHARS) {
+              line.append(c);
+            } else {
+              cut = true;
+            }
+          }
+        }
+      } catch (IOException e) {
+        // peer is gone
+      }
+      if (line.length() > 0)
+        add(line, cut);
+    }
+
+    private void add(StringBuilder line, boolean cut) {
+      String s = cut ? line + "..." : line.toString();
+      if (BetterFileDialog.tracing(1))
+        BetterFileDialog.trace(1, "Peer {}: {}", pid, s);
+      synchronized(lines) {
+        if (lines.size() >= MAX_LINES)
+          lines.poll();
+        lines.add(s);
+      }
+    }
+
+    // Write the kept lines to System.err, unless DialogTrace.dumpOnError is
+    // false, and return the last one, or null. The peer has usually just
+    // exited, so this waits a moment for the rest of its output.
+    String dump() {
+      try {
+        thread.join(250);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      synchronized(lines) {
+        if (!lines.isEmpty() && DialogTrace.dumpOnError) {
+          System.err.println("BetterFileDialog: last " + lines.size() +
+              " lines from peer process " + pid + ":");
+          for (String line : lines)
+            System.err.println("  " + line);
+        }
+        return lines.peekLast();
+      }
+    }
+  }
+
+  // Thrown when the peer process goes away while we are still talking to it.
+  static class PeerExitedException extends IOException {
+    private static final long serialVersionUID = 1L;
+    PeerExitedException(String msg) { super(msg); }
+  }
+
+  // Thrown when PeerWatchdog killed the peer. Unlike PeerExitedException, this
+  // is not worth retrying with a fresh peer, which would likely hang too.
+  static class PeerHungException extends IOException {
+    private static final long serialVersionUID = 1L;
+    PeerHungException(String msg) { super(msg); }
+  }
+
+}
@@ -0,0 +1,305 @@
+package org.kwalsh;
+
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+// Framed protocol between BetterFileDialog (client) and BetterFileDialogPeer.
+//
+// * Every message is a frame: a one-byte type, a four-byte big-endian payload
+//   length, then the payload. Strings are UTF-8, and may contain anything,
+//   including line breaks. Integers are four-byte big-endian.
+//
+// * The peer's stdout carries nothing but frames. It starts with MAGIC followed
+//   by a HELLO frame giving the protocol version. Anything before MAGIC (e.g.
+//   JVM warnings) is skipped by the client. Tracing is sent as TRACE frames,
+//   and anything else the peer prints goes to stderr. With a control socket
+//   (see PeerChannel), the same frames, in both directions, go over the socket
+//   instead of stdout and stdin.
+//
+// * The client sends REQUEST frames on the peer's stdin. A REQUEST holds a list
+//   of strings: a sequence of fields, each a key followed by its values.
+//     prompt openfile|openfiles|savefile|pickdir
+//     title text
+//     loc x,y
+//     path initialPath
+//     debug level
+//     trace level
+//     filter name description patterns extensions
+//   Only prompt is required, and filter may be repeated. The client always
+//   sends debug, even when it is zero, since a resident peer otherwise keeps
+//   the level it was started with or last given. For a filter, the
+//   description and patterns are just as Filter.getDescription() and
+//   Filter.getExtensions() return them, so the peer can hand them straight to
+//   SWT. The extensions are separated by "/". Debug is the dialog's trace
+//   level (see DialogOptions), which also makes the peer's shell visible, and
+//   trace is the client's traceBufferLevel, which only asks for more TRACE
+//   frames.
+final class PeerProtocol {
+
+  static final int VERSION = 5;
+  static final byte[] MAGIC = { 'B', 'F', 'D', 'P' };
+
+  // Largest frame we will accept. Anything bigger is corruption.
+  static final int MAX_FRAME = 64 * 1024 * 1024;
+
+  // Peer to client
+  static final int HELLO = 1; // int version
+  static final int READY = 2; // SWT Display created, sent by every peer
+  static final int TRACE = 3; // string
+  static final int CHECKED_OVERWRITE = 4; // SWT already warned on overwrite
+  static final int SUGGEST_EXTENSION = 5; // string
+  static final int RESULT_DIR = 6; // string
+  static final int RESULT_COUNT = 7; // int
+  static final int RESULT = 8; // string
+  static final int CANCELED = 9;
+  static final int ERROR = 10; // string
+  static final int DONE = 11; // end of answer to a request
+  static final int EXIT = 12; // peer is exiting
+  static final int RESULT_BATCH = 13; // int n, then n times: int length, bytes
+  static final int SHOWN = 14; // dialog is being opened
+  static final int CLOSED = 15; // user closed the dialog
+  static final int HEARTBEAT = 16; // still alive, sent while a dialog is up
+
+  // How often the peer sends HEARTBEAT while a dialog is up.
+  static final int HEARTBEAT_MILLIS = 1000;
+
+  // Client to peer
+  static final int REQUEST = 64; // int n, then n times: int length, bytes (see above)
+
+  static String name(int type) {
+    switch (type) {
+      case HELLO: return "HELLO";
+      case READY: return "READY";
+      case TRACE: return "TRACE";
+      case CHECKED_OVERWRITE: return "CHECKED_OVERWRITE";
+      case SUGGEST_EXTENSION: return "SUGGEST_EXTENSION";
+      case RESULT_DIR: return "RESULT_DIR";
+      case RESULT_COUNT: return "RESULT_COUNT";
+      case RESULT: return "RESULT";
+      case CANCELED: return "CANCELED";
+      case ERROR: return "ERROR";
+      case DONE: return "DONE";
+      case EXIT: return "EXIT";
+      case RESULT_BATCH: return "RESULT_BATCH";
+      case SHOWN: return "SHOWN";
+      case CLOSED: return "CLOSED";
+      case HEARTBEAT: return "HEARTBEAT";
+      case REQUEST: return "REQUEST";
+      default: return "UNKNOWN(" + type + ")";
+    }
+  }
+
+  static final class Writer {
+    private final OutputStream out;
+    private final byte[] header = new byte[5];
+
+    Writer(OutputStream os) {
+      out = new BufferedOutputStream(os, 8192);
+    }
+
+    synchronized void magic() throws IOException {
+      out.write(MAGIC);
+      out.flush();
+    }
+
+    synchronized void send(int type) throws IOException {
+      header(type, 0);
+      out.flush();
+    }
+
+    synchronized void send(int type, int value) throws IOException {
+      header(type, 4);
+      writeInt(value);
+      out.flush();
+    }
+
+    synchronized void send(int type, String s) throws IOException {
+      byte[] b = s.getBytes(StandardCharsets.UTF_8);
+      header(type, b.length);
+      out.write(b);
+      out.flush();
+    }
+
+    synchronized void send(int type, List<String> strings) throws IOException {
+      byte[][] b = new byte[strings.size()][];
+      long len = 4;
+      for (int i = 0; i < b.length; i++) {
+        b[i] = strings.get(i).getBytes(StandardCharsets.UTF_8);
+        len += 4 + b[i].length;
+      }
+      if (len > MAX_FRAME)
+        throw new IOException("frame too large: " + len + " bytes");
+      header(type, (int)len);
+      writeInt(b.length);
+      for (byte[] s : b) {
+        writeInt(s.length);
+        out.write(s);
+      }
+      out.flush();
+    }
+
+    // Send strings as a series of list frames of about batchBytes each, so a
+    // huge list costs a few large writes rather than one small write per
+    // string, but the reader can still start on the first frame while the rest
+    // are on their way.
+    void sendBatches(int type, String[] strings, int batchBytes) throws IOException {
+      ArrayList<String> batch = new ArrayList<>();
+      int bytes = 0;
+      for (String s : strings) {
+        batch.add(s);
+        bytes += 4 + s.length();
+        if (bytes >= batchBytes) {
+          send(type, batch);
+          batch.clear();
+          bytes = 0;
+        }
+      }
+      if (!batch.isEmpty())
+        send(type, batch);
+    }
+
+    void close() {
+      try { out.close(); }
+      catch (IOException e) { } // already gone
+    }
+
+    private void header(int type, int len) throws IOException {
+      header[0] = (byte)type;
+      header[1] = (byte)(len >>> 24);
+      header[2] = (byte)(len >>> 16);
+      header[3] = (byte)(len >>> 8);
+      header[4] = (byte)len;
+      out.write(header);
+    }
+
+    private void writeInt(int v) throws IOException {
+      out.write(v >>> 24);
+      out.write(v >>> 16);
+      out.write(v >>> 8);
+      out.write(v);
+    }
+  }
+
+  // Reads frames from a stream into a single reusable buffer. After next(), the
+  // payload of the current frame stays in the buffer until the following call
+  // to next(), and is only decoded if asked for.
+  static final class Reader {
+    private final InputStream in;
+    private byte[] buf = new byte[8192];
+    private int pos, lim; // buffered bytes not yet consumed are buf[pos..lim)
+    private int start, len; // payload of current frame is buf[start..start+len)
+
+    Reader(InputStream in) {
+      this.in = in;
+    }
+
+    // Discard input up to and including MAGIC. Returns the number of bytes
+    // skipped before MAGIC.
+    int skipMagic() throws IOException {
+      int skipped = 0;
+      int matched = 0;
+      while (matched < MAGIC.length) {
+        fill(1);
+        byte b = buf[pos++];
+        if (b == MAGIC[matched]) {
+          matched++;
+        } else {
+          skipped += matched + 1;
+          matched = (b == MAGIC[0]) ? 1 : 0;
+          if (matched == 1)
+            skipped--;
+        }
+      }
+      return skipped;
+    }
+
+    // Read the next frame and return its type.
+    int next() throws IOException {
+      fill(5);
+      int type = buf[pos] & 0xff;
+      int n = getInt(pos + 1);
+      if (n < 0 || n > MAX_FRAME)
+        throw new IOException("corrupt frame (type " + type + ", length " + n + ")");
+      pos += 5;
+      fill(n);
+      start = pos;
+      len = n;
+      pos += n;
+      return type;
+    }
+
+    int length() {
+      return len;
+    }
+
+    // Payload of current frame, as a string.
+    String string() {
+      return new String(buf, start, len, StandardCharsets.UTF_8);
+    }
+
+    // Payload of current frame, as an int.
+    int intValue() throws IOException {
+      if (len < 4)
+        throw new IOException("corrupt frame (short int)");
+      return getInt(start);
+    }
+
+    // Payload of current frame, as a list of strings.
+    String[] strings() throws IOException {
+      int end = start + len;
+      int p = start;
+      if (p + 4 > end)
+        throw new IOException("corrupt frame (short list)");
+      int n = getInt(p);
+      p += 4;
+      if (n < 0 || n > len / 4)
+        throw new IOException("corrupt frame (bad list length)");
+      String[] ret = new String[n];
+      for (int i = 0; i < n; i++) {
+        if (p + 4 > end)
+          throw new IOException("corrupt frame (short list)");
+        int k = getInt(p);
+        p += 4;
+        if (k < 0 || p + k > end)
+          throw new IOException("corrupt frame (bad string length)");
+        ret[i] = new String(buf, p, k, StandardCharsets.UTF_8);
+        p += k;
+      }
+      return ret;
+    }
+
+    private int getInt(int p) {
+      return ((buf[p] & 0xff) << 24) | ((buf[p+1] & 0xff) << 16) |
+        ((buf[p+2] & 0xff) << 8) | (buf[p+3] & 0xff);
+    }
+
+    // Make sure at least n unconsumed bytes are buffered.
+    private void fill(int n) throws IOException {
+      if (lim - pos >= n)
+        return;
+      if (pos > 0) {
+        System.arraycopy(buf, pos, buf, 0, lim - pos);
+        lim -= pos;
+        pos = 0;
+      }
+      if (buf.length < n) {
+        byte[] b = new byte[Math.max(n, 2 * buf.length)];
+        System.arraycopy(buf, 0, b, 0, lim);
+        buf = b;
+      }
+      while (lim < n) {
+        int k = in.read(buf, lim, buf.length - lim);
+        if (k < 0)
+          throw new EOFException("end of stream");
+        lim += k;
+      }
+    }
+  }
+
+}
@@ -0,0 +1,133 @@
+package org.kwalsh;
+
+import java.awt.EventQueue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+// Keeps an eye on peer processes, so a broken peer can't block the client
+// forever, and no peer outlives the client.
+//
+// * Deadlines: while a client thread waits for a peer in PeerProcess.next(),
+//   the peer must send READY within peerStartupTimeout of being spawned
+//   (e.g. a broken DISPLAY or a stuck GTK portal can hang new Display()),
+//   and after that, must send something at least every peerHeartbeatTimeout.
+//   Both come from the DialogOptions of the dialog the peer is serving, or
+//   BetterFileDialog's settings until it has one. The peer sends HEARTBEAT while its
+//   dialog is up. A peer that misses a deadline is killed, and the waiting
+//   thread gets a PeerHungException, so the dialog fails (reporting to the
+//   errorHandler) and falls back to Swing.
+//
+// * Reaping: a destroyed peer gets KILL_GRACE_MILLIS to exit, after which it
+//   is killed forcibly. Process.onExit() drops exited peers from the watch
+//   list.
+//
+// * Cleanup: a shutdown hook destroys any peers still running when the client
+//   exits. If the client dies without running hooks, peers still exit on
+//   their own: an idle peer sees stdin close, and a peer showing a dialog
+//   fails to send its next HEARTBEAT.
+//
+// Anything the watchdog does that isn't already reported as a dialog error is
+// passed to BetterFileDialog.errorHandler, on the AWT/Swing thread.
+final class PeerWatchdog {
+
+  private PeerWatchdog() { }
+
+  static final long CHECK_MILLIS = 250;
+  static final long KILL_GRACE_MILLIS = 2000;
+  static final long SHUTDOWN_GRACE_MILLIS = 1000;
+
+  private static final Set<PeerProcess> peers = ConcurrentHashMap.newKeySet();
+  private static ScheduledExecutorService timer;
+
+  private static synchronized ScheduledExecutorService timer() {
+    if (timer == null) {
+      timer = Executors.newSingleThreadScheduledExecutor((r) -> {
+        Thread t = new Thread(r, "BetterFileDialog Watchdog");
+        t.setDaemon(true);
+        return t;
+      });
+      timer.scheduleWithFixedDelay(PeerWatchdog::check,
+          CHECK_MILLIS, CHECK_MILLIS, TimeUnit.MILLISECONDS);
+      Runtime.getRuntime().addShutdownHook(
+          new Thread(PeerWatchdog::shutdown, "BetterFileDialog Peer Cleanup"));
+    }
+    return timer;
+  }
+
+  static void watch(PeerProcess p) {
+    timer();
+    peers.add(p);
+    p.process.onExit().thenRun(() -> peers.remove(p));
+  }
+
+  static void check() {
+    long now = System.nanoTime();
+    for (PeerProcess p : peers) {
+      long waiting = p.waitNanos;
+      if (waiting == 0 || p.hung != null)
+        continue;
+      if (!p.isReady()) {
+        long limit = p.startupTimeout;
+        if (limit > 0 && now - p.startNanos > limit * 1000000)
+          kill(p, "peer did not start within " + limit + " ms");
+      } else {
+        long limit = p.heartbeatTimeout;
+        long since = Math.max(p.heardNanos, waiting);
+        if (limit > 0 && now - since > limit * 1000000)
+          kill(p, "peer stopped responding for " + limit + " ms");
+      }
+    }
+  }
+
+  // The thread waiting for the peer reports this, as the reason its dialog
+  // failed.
+  static void kill(PeerProcess p, String why) {
+    p.hung = why;
+    BetterFileDialog.trace(1, "Watchdog: {}, killing process {}", why, p.pid());
+    p.destroy();
+  }
+
+  // Forcibly kill p if it is still running after KILL_GRACE_MILLIS.
+  static void reap(PeerProcess p) {
+    if (!p.isAlive())
+      return;
+    timer().schedule(() -> {
+      if (p.isAlive()) {
+        p.destroyForcibly();
+        report("Peer process " + p.pid() + " did not exit within " +
+            KILL_GRACE_MILLIS + " ms, killed it");
+      }
+    }, KILL_GRACE_MILLIS, TimeUnit.MILLISECONDS);
+  }
+
+  static void shutdown() {
+    if (peers.isEmpty())
+      return;
+    for (PeerProcess p : peers) {
+      p.out.close();
+      p.process.destroy();
+    }
+    long deadline = System.nanoTime() + SHUTDOWN_GRACE_MILLIS * 1000000;
+    for (PeerProcess p : peers) {
+      long left = Math.max(0, (deadline - System.nanoTime()) / 1000000);
+      if (p.awaitExit(left))
+        System.err.println("BetterFileDialog: killed peer process " + p.pid() + " at exit");
+    }
+  }
+
+  static void report(String msg) {
+    BetterFileDialog.trace(1, "Watchdog: {}", msg);
+    Consumer<String> handler = BetterFileDialog.errorHandler;
+    if (handler != null) {
+      EventQueue.invokeLater(() -> {
+        try { handler.accept(msg); }
+        catch (Exception e) { e.printStackTrace(); }
+      });
+    }
+  }
+
+}
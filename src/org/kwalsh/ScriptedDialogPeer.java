@@ -0,0 +1,109 @@
+package org.kwalsh;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Objects;
+
+/**
+ * ScriptedDialogPeer is a DialogPeer that never shows anything. Instead, it
+ * answers each dialog with the next outcome from a script, after a delay that
+ * stands in for the user. Once the script runs out, the last outcome is
+ * repeated. This makes it possible to exercise and time everything around the
+ * dialog itself, e.g. on a machine with no real desktop. For example:
+ *
+ *   BetterFileDialog.dialogPeer = new ScriptedDialogPeer()
+ *       .thenSelect(100, "/tmp/a.txt")
+ *       .thenCancel(50)
+ *       .thenFail(0, "no display");
+ *
+ * Selected paths are reported as-is, without checking whether they exist. For
+ * dialogs that allow several files, all the given paths are selected; for
+ * others, only the first is.
+ */
+public class ScriptedDialogPeer implements DialogPeer {
+
+  private static final class Step {
+    final long delayMillis;
+    final String[] paths; // null for cancel or error
+    final String error;
+    Step(long delayMillis, String[] paths, String error) {
+      this.delayMillis = delayMillis;
+      this.paths = paths;
+      this.error = error;
+    }
+  }
+
+  private final ArrayList<Step> script = new ArrayList<>();
+  private int next;
+  private int shown;
+
+  /**
+   * Add a step that selects the given paths after a delay.
+   * @param delayMillis - how long the imaginary user takes to decide.
+   * @param paths - one or more absolute paths.
+   */
+  public synchronized ScriptedDialogPeer thenSelect(long delayMillis, String... paths) {
+    if (paths == null || paths.length == 0)
+      throw new IllegalArgumentException("At least one path is needed");
+    script.add(new Step(delayMillis, paths.clone(), null));
+    return this;
+  }
+
+  /** Add a step that cancels the dialog after a delay. */
+  public synchronized ScriptedDialogPeer thenCancel(long delayMillis) {
+    script.add(new Step(delayMillis, null, null));
+    return this;
+  }
+
+  /**
+   * Add a step where the dialog fails after a delay, as the native dialog
+   * might. BetterFileDialog then reports the error to its errorHandler, and
+   * falls back to a Swing dialog.
+   */
+  public synchronized ScriptedDialogPeer thenFail(long delayMillis, String message) {
+    script.add(new Step(delayMillis, null, message == null ? "failed" : message));
+    return this;
+  }
+
+  /** Return how many dialogs have been shown so far. */
+  public synchronized int getShown() {
+    return shown;
+  }
+
+  public String name() {
+    return "scripted";
+  }
+
+  private synchronized Step nextStep() {
+    shown++;
+    if (script.isEmpty())
+      return new Step(0, null, null);
+    Step s = script.get(next);
+    if (next < script.size() - 1)
+      next++;
+    return s;
+  }
+
+  public void show(Request request, Response response) throws Exception {
+    Step step = nextStep();
+    response.shown();
+    if (step.delayMillis > 0)
+      Thread.sleep(step.delayMillis);
+    response.closed();
+    if (step.error != null) {
+      response.error(step.error);
+    } else if (step.paths == null) {
+      response.canceled();
+    } else if (request.getMode() == OPEN_FILES) {
+      String dir = new File(step.paths[0]).getParent();
+      response.results(dir, step.paths.length);
+      for (String p : step.paths) {
+        File f = new File(p);
+        response.resultName(Objects.equals(dir, f.getParent()) ? f.getName() : p);
+      }
+    } else {
+      response.result(step.paths[0]);
+    }
+  }
+
+}
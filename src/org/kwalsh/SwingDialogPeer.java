@@ -0,0 +1,173 @@
+package org.kwalsh;
+
+import java.awt.EventQueue;
+import java.awt.GraphicsEnvironment;
+import java.io.File;
+import java.lang.ref.SoftReference;
+import javax.swing.JFileChooser;
+import javax.swing.LookAndFeel;
+import javax.swing.SwingUtilities;
+import javax.swing.UIManager;
+
+// The fallback DialogPeer: Swing's JFileChooser, shown on the AWT/Swing thread.
+// This is used when the SWT peer can't be installed or fails.
+//
+// Constructing a JFileChooser is slow (it sets up shell folders and icons, and
+// lists a directory), and it happens on the AWT/Swing thread, which visibly
+// freezes the application. So one chooser is kept between dialogs, reset
+// rather than rebuilt, and built ahead of time by prebuild() once we know the
+// fallback will be needed. It is held by a SoftReference, so it is released
+// under memory pressure. All of this happens on the AWT/Swing thread.
+final class SwingDialogPeer implements DialogPeer {
+
+  static final SwingDialogPeer INSTANCE = new SwingDialogPeer();
+
+  private static SoftReference<JFileChooser> spare; // null while in use
+  private static LookAndFeel spareLookAndFeel;
+  private static int inUse; // dialogs currently showing
+
+  // Build a chooser on the AWT/Swing thread, when it is next idle.
+  static void prebuild() {
+    if (GraphicsEnvironment.isHeadless())
+      return;
+    EventQueue.invokeLater(() -> {
+      if (inUse > 0 || (spare != null && spare.get() != null))
+        return;
+      long t = System.nanoTime();
+      release(newChooser());
+      if (BetterFileDialog.tracing(2))
+        BetterFileDialog.trace(2, "Prebuilt JFileChooser in {} ms", (System.nanoTime() - t) / 1000000);
+    });
+  }
+
+  // Directories are listed by NioFileSystemView, which is much faster than the
+  // default view for huge directories and network mounts.
+  private static JFileChooser newChooser() {
+    return new JFileChooser(NioFileSystemView.get());
+  }
+
+  // Take the spare chooser, reset to its defaults, or build a new one.
+  private static JFileChooser acquire() {
+    JFileChooser fc = spare == null ? null : spare.get();
+    spare = null;
+    if (fc == null)
+      return newChooser();
+    if (UIManager.getLookAndFeel() != spareLookAndFeel)
+      SwingUtilities.updateComponentTreeUI(fc);
+    return fc;
+  }
+
+  // Reset a chooser and keep it for the next dialog.
+  private static void release(JFileChooser fc) {
+    fc.resetChoosableFileFilters();
+    fc.setAcceptAllFileFilterUsed(true);
+    fc.setFileFilter(fc.getAcceptAllFileFilter());
+    fc.setMultiSelectionEnabled(false);
+    fc.setFileSelectionMode(JFileChooser.FILES_ONLY);
+    fc.setSelectedFiles(null);
+    fc.setSelectedFile(null);
+    fc.setDialogTitle(null);
+    spareLookAndFeel = UIManager.getLookAndFeel();
+    spare = new SoftReference<>(fc);
+  }
+
+  public String name() {
+    return "swing";
+  }
+
+  @Override
+  public boolean usesAWTThread() {
+    return true;
+  }
+
+  public void show(Request request, Response response) {
+    JFileChooser fc = acquire();
+    inUse++;
+    try {
+      show(fc, request, response);
+    } finally {
+      inUse--;
+      release(fc);
+    }
+  }
+
+  private void show(JFileChooser fc, Request request, Response response) {
+    int mode = request.getMode();
+    String title = request.getTitle();
+    String initialPath = request.getInitialPath();
+    BetterFileDialog.Filter[] filters = request.getFilters();
+    if (mode == OPEN_FILE || mode == SAVE_FILE || mode == OPEN_FILES) {
+      if (title != null)
+        fc.setDialogTitle(title);
+      File dir = null, file = null;
+      if (initialPath != null) {
+        // The initial directory and suggested file, from a single stat.
+        File path = new File(initialPath);
+        boolean isDir = path.isDirectory();
+        dir = isDir ? path : path.getParentFile();
+        file = isDir || initialPath.endsWith(File.separator) ? null : path;
+      }
+      fc.setCurrentDirectory(dir); // null means the default, as for a new chooser
+      if (file != null)
+        fc.setSelectedFile(file);
+      if (filters.length > 0) {
+        for (BetterFileDialog.Filter f : filters)
+          fc.addChoosableFileFilter(f);
+        fc.setFileFilter(filters[0]);
+      }
+      if (mode == OPEN_FILES)
+        fc.setMultiSelectionEnabled(true);
+      int ret;
+      response.shown();
+      if (mode == SAVE_FILE)
+        ret = fc.showSaveDialog(request.getParent());
+      else
+        ret = fc.showOpenDialog(request.getParent());
+      response.closed();
+      if (ret != JFileChooser.APPROVE_OPTION) {
+        response.canceled();
+      } else if (mode == OPEN_FILES) {
+        File[] files = fc.getSelectedFiles();
+        if (files.length == 0) {
+          response.canceled();
+          return;
+        }
+        File cwd = fc.getCurrentDirectory();
+        response.results(cwd.getPath(), files.length);
+        for (File f : files)
+          response.resultName(cwd.equals(f.getParentFile()) ? f.getName() : f.getPath());
+      } else {
+        if (mode == SAVE_FILE && filters.length > 0) {
+          BetterFileDialog.Filter usedFilter = filters[0];
+          javax.swing.filechooser.FileFilter chosenFilter = fc.getFileFilter();
+          if (chosenFilter instanceof BetterFileDialog.Filter)
+            usedFilter = (BetterFileDialog.Filter)chosenFilter;
+          response.suggestExtension(usedFilter.getDefaultExtension());
+        }
+        response.result(fc.getSelectedFile().getPath());
+      }
+    } else if (mode == PICK_DIR) {
+      if (title != null)
+        fc.setDialogTitle(title);
+      File dir = null, parent = null;
+      if (initialPath != null) {
+        File path = new File(initialPath);
+        dir = BetterFileDialog.toDir(path);
+        if (dir != null)
+          parent = dir.getParentFile();
+      }
+      fc.setCurrentDirectory(parent);
+      if (dir != null)
+        fc.setSelectedFile(dir);
+      fc.setFileSelectionMode(JFileChooser.DIRECTORIES_ONLY);
+      response.shown();
+      int ret = fc.showOpenDialog(request.getParent());
+      response.closed();
+      if (ret == JFileChooser.APPROVE_OPTION)
+        response.result(fc.getSelectedFile().getPath());
+      else
+        response.canceled();
+    }
+  }
+
+}
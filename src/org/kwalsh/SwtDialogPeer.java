@@ -0,0 +1,225 @@
+package org.kwalsh;
+
+import java.util.ArrayList;
+import java.util.Objects;
+
+// The default DialogPeer: native SWT dialogs, shown by a BetterFileDialogPeer
+// process. Depending on BetterFileDialog.resident, the process is either the
+// shared resident peer, a spare peer started by warmup(), or a one-shot peer
+// started just for this dialog. The peer processes themselves are managed by
+// BetterFileDialog.
+final class SwtDialogPeer implements DialogPeer {
+
+  static final SwtDialogPeer INSTANCE = new SwtDialogPeer();
+
+  public String name() {
+    return "swt";
+  }
+
+  public void show(Request request, Response response) throws Exception {
+    new Call(request, response).run();
+  }
+
+  // Dialog-specific settings for the peer, sent over stdin as a REQUEST frame.
+  // See PeerProtocol for the layout.
+  static ArrayList<String> peerRequest(Request request) {
+    ArrayList<String> args = new ArrayList<>();
+    args.add("prompt");
+    args.add(BetterFileDialog.PROMPTS[request.getMode()]);
+    if (request.getTitle() != null) {
+      args.add("title");
+      args.add(request.getTitle());
+    }
+    if (request.getLocation() != null) {
+      args.add("loc");
+      args.add(request.getLocation().x+","+request.getLocation().y);
+    }
+    if (request.getInitialPath() != null) {
+      args.add("path");
+      args.add(request.getInitialPath());
+    }
+    for (BetterFileDialog.Filter f : request.getFilters()) {
+      args.add("filter");
+      f.encodeForPeer(args);
+    }
+    // Sent even when zero, as a resident or spare peer would otherwise keep
+    // the level of its command line or of an earlier dialog.
+    args.add("debug");
+    args.add("" + request.getOptions().getTraceLevel());
+    // Peer trace events are all relayed at level 2, see read().
+    if (BetterFileDialog.traceBufferLevel >= 2) {
+      args.add("trace");
+      args.add("" + BetterFileDialog.traceBufferLevel);
+    }
+    return args;
+  }
+
+  // One dialog's conversation with a peer process. This runs on a background
+  // thread.
+  static final class Call {
+    final Request request;
+    final Response response;
+    final DialogOptions options;
+    final long startNanos = System.nanoTime();
+    PeerProcess peer;
+    boolean peerResponded; // peer sent something for this request
+    boolean peerFinished; // peer sent DONE or EXIT for this request
+
+    Call(Request request, Response response) {
+      this.request = request;
+      this.response = response;
+      this.options = request.getOptions();
+    }
+
+    void run() throws Exception {
+      try {
+        open();
+        try {
+          read();
+        } catch (PeerProcess.PeerExitedException e) {
+          // A resident peer can exit on its own, e.g. after its idle timeout,
+          // just as we hand it a request. In that case, try once more with a
+          // freshly spawned peer.
+          if (!peer.resident || peerResponded)
+            throw e;
+          BetterFileDialog.trace(1, "Resident peer exited, respawning");
+          close();
+          open();
+          read();
+        }
+      } finally {
+        if (peer != null)
+          measurePeer();
+        close();
+      }
+    }
+
+    void open() throws Exception {
+      long t = System.nanoTime();
+      String err = BetterFileDialog.install();
+      response.timing("install", System.nanoTime() - t);
+      if (err != null)
+        throw new Exception("installation failed: " + err);
+      if (BetterFileDialog.javaExePath == null || BetterFileDialog.peerClassPath == null)
+        throw new Exception("BetterFileDialog installation still failed");
+
+      ArrayList<String> args = peerRequest(request);
+
+      // Resident and spare peers were started with the global app name, which
+      // can't be changed once the peer has a Display.
+      boolean shared = Objects.equals(options.getAppName(), BetterFileDialog.appName);
+      if (!shared) {
+        BetterFileDialog.trace(2, "App name differs, using a one-shot peer");
+      } else if (BetterFileDialog.resident) {
+        peer = BetterFileDialog.acquireResidentPeer();
+        if (peer != null) {
+          send("Request", args);
+          return;
+        }
+        BetterFileDialog.trace(1, "Resident peers are busy, using a one-shot peer");
+      } else {
+        peer = BetterFileDialog.takeSparePeer();
+        if (peer != null) {
+          send("Request to spare peer", args);
+          return;
+        }
+      }
+
+      ArrayList<String> cmd = BetterFileDialog.peerCommand(options.getAppName());
+      BetterFileDialog.trace(2, "Peer: {}", cmd);
+
+      peer = PeerProcess.start(cmd, false);
+      send("Request", args);
+    }
+
+    // Apply this dialog's deadlines to the peer, then send it the request.
+    void send(String what, ArrayList<String> args) throws Exception {
+      peer.startupTimeout = options.getPeerStartupTimeout();
+      peer.heartbeatTimeout = options.getPeerHeartbeatTimeout();
+      if (BetterFileDialog.tracing(2))
+        BetterFileDialog.trace(2, what + " #{}: {}", request.getId(), args);
+      peer.send(args);
+    }
+
+    void close() {
+      if (peer == null)
+        return;
+      if (peer.resident)
+        BetterFileDialog.releaseResidentPeer(peer, peerFinished);
+      else
+        peer.destroy();
+      peer = null;
+    }
+
+    // Startup only counts if the peer was spawned for this dialog. This must
+    // be called before the peer is closed.
+    void measurePeer() {
+      if (peer.spawnNanos > 0 && peer.startNanos - startNanos >= 0) {
+        response.timing("spawn", peer.spawnNanos);
+        if (peer.readyNanos != 0)
+          response.timing("ready", peer.readyNanos - peer.startNanos - peer.spawnNanos);
+      }
+    }
+
+    void read() throws Exception {
+      // A one-shot peer can be abandoned as soon as we have what we need, but
+      // a resident peer must be drained up to DONE, so it is ready for the
+      // next request.
+      int lvl = options.getTraceLevel();
+      boolean early = !peer.resident && lvl <= 1;
+      boolean tracing2 = lvl >= 2 || BetterFileDialog.tracing(2);
+      boolean tracing3 = BetterFileDialog.tracing(3);
+      if (peer.resident)
+        peer.awaitReady();
+      PeerProtocol.Reader in = peer.in;
+      String dir = null;
+      while (true) {
+        int type = peer.next();
+        if (type == PeerProtocol.TRACE) {
+          if (tracing2)
+            BetterFileDialog.traceAt(lvl, 2, "Peer > {}", in.string());
+          continue;
+        }
+        if (tracing3)
+          BetterFileDialog.trace(3, "Peer > {} ({} bytes)", PeerProtocol.name(type), in.length());
+        if (type == PeerProtocol.EXIT || type == PeerProtocol.DONE) {
+          peerFinished = true;
+          break;
+        } else if (type == PeerProtocol.READY) {
+          continue;
+        }
+        // From here on, the user may have seen a dialog, so this request must
+        // not be retried.
+        peerResponded = true;
+        if (type == PeerProtocol.SHOWN) {
+          response.shown();
+        } else if (type == PeerProtocol.CLOSED) {
+          response.closed();
+        } else if (type == PeerProtocol.CHECKED_OVERWRITE) {
+          response.checkedOverwrite();
+        } else if (type == PeerProtocol.SUGGEST_EXTENSION) {
+          String ext = in.string();
+          response.suggestExtension(ext.length() == 0 ? null : ext);
+        } else if (type == PeerProtocol.RESULT) {
+          response.result(in.string());
+        } else if (type == PeerProtocol.RESULT_BATCH) {
+          for (String name : in.strings())
+            response.resultName(name);
+        } else if (type == PeerProtocol.RESULT_DIR) {
+          dir = in.string();
+        } else if (type == PeerProtocol.RESULT_COUNT) {
+          response.results(dir, in.intValue());
+        } else if (type == PeerProtocol.ERROR) {
+          response.error(in.string());
+        } else if (type == PeerProtocol.CANCELED) {
+          response.canceled();
+        } else {
+          throw new Exception("unexpected message from peer: " + PeerProtocol.name(type));
+        }
+        if (early && response.isComplete())
+          break;
+      }
+    }
+  }
+
+}
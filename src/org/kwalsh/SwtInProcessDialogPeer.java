@@ -0,0 +1,174 @@
+package org.kwalsh;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import org.eclipse.swt.widgets.Display;
+
+/**
+ * SwtInProcessDialogPeer shows native SWT dialogs from within the
+ * application's own JVM, rather than from a separate peer process. This is
+ * only supported on Linux, where SWT (GTK) can run on a thread of its own
+ * alongside AWT/Swing. It skips the cost of launching a JVM for each dialog,
+ * or keeping a resident one around: the first dialog creates an SWT Display
+ * on a dedicated thread, and every later dialog reuses it, with results passed
+ * straight back rather than over a pipe. To use it, put one of the SWT jars on
+ * the application's classpath, and:
+ *
+ *   BetterFileDialog.dialogPeer = SwtInProcessDialogPeer.get();
+ *
+ * Only one dialog is shown this way at a time. If another is requested while
+ * one is up, e.g. through a DialogManager, it is shown by a peer process
+ * instead. The Display is created with BetterFileDialog.appName as it is at
+ * the time, and keeps that name. As with any backend, if something goes
+ * wrong, the dialog falls back to Swing.
+ *
+ * Unlike a peer process, a dialog shown in-process isn't covered by the
+ * watchdog, and a crash in native code takes the application down with it.
+ */
+public final class SwtInProcessDialogPeer implements DialogPeer {
+
+  private static SwtInProcessDialogPeer instance;
+
+  /** Return the in-process backend. There is only one, as there is only one Display. */
+  public static synchronized SwtInProcessDialogPeer get() {
+    if (instance == null)
+      instance = new SwtInProcessDialogPeer();
+    return instance;
+  }
+
+  private SwtInProcessDialogPeer() { }
+
+  private final Semaphore busy = new Semaphore(1);
+  private final CountDownLatch started = new CountDownLatch(1);
+  private Thread thread;
+  private volatile Display display;
+  private volatile String startError;
+
+  public String name() {
+    return "swt-inprocess";
+  }
+
+  public void show(Request request, Response response) throws Exception {
+    if (!busy.tryAcquire()) {
+      BetterFileDialog.trace(1, "In-process dialog is busy, using a peer process for #{}",
+          request.getId());
+      SwtDialogPeer.INSTANCE.show(request, response);
+      return;
+    }
+    try {
+      Display d = start(response);
+      CountDownLatch done = new CountDownLatch(1);
+      d.asyncExec(() -> serve(request, response, done));
+      // The dialog is up until done, whatever happens to this thread.
+      boolean interrupted = false;
+      while (true) {
+        try {
+          done.await();
+          break;
+        } catch (InterruptedException e) {
+          interrupted = true;
+        }
+      }
+      if (interrupted)
+        Thread.currentThread().interrupt();
+    } finally {
+      busy.release();
+    }
+  }
+
+  // Start the SWT thread, if not done already, and wait for its Display.
+  private Display start(Response response) throws Exception {
+    synchronized(this) {
+      if (thread == null) {
+        if (!BetterFileDialog.isLinux)
+          throw new Exception("in-process SWT dialogs are only supported on Linux");
+        long t = System.nanoTime();
+        thread = new Thread(this::loop, "SWT In-Process Thread");
+        thread.setDaemon(true);
+        thread.start();
+        started.await();
+        response.timing("ready", System.nanoTime() - t);
+      }
+    }
+    if (startError != null)
+      throw new Exception(startError);
+    Display d = display;
+    if (d == null || d.isDisposed())
+      throw new Exception("SWT display is gone");
+    return d;
+  }
+
+  // The SWT thread: create the Display, then run its event loop for good.
+  private void loop() {
+    try {
+      Display.setAppName(BetterFileDialog.appName != null ?
+          BetterFileDialog.appName : BetterFileDialogPeer.appName);
+      display = new Display();
+      BetterFileDialogPeer.swtDisplay = display;
+    } catch (Throwable e) {
+      startError = "can't create SWT display: " + e;
+      return;
+    } finally {
+      started.countDown();
+    }
+    BetterFileDialog.trace(1, "In-process SWT display started");
+    while (!display.isDisposed()) {
+      try {
+        if (!display.readAndDispatch())
+          display.sleep();
+      } catch (Throwable e) {
+        e.printStackTrace(); // keep the loop going for later dialogs
+      }
+    }
+  }
+
+  // This runs on the SWT thread. The request goes through the same code as in
+  // a peer process, with the outcome reported straight to response.
+  private void serve(Request request, Response response, CountDownLatch done) {
+    int lvl = request.getOptions().getTraceLevel();
+    try {
+      BetterFileDialogPeer.reset();
+      BetterFileDialogPeer.traceLevel = lvl;
+      BetterFileDialogPeer.traceBufferLevel = BetterFileDialog.traceBufferLevel;
+      BetterFileDialogPeer.sink = new ResponseSink(response, lvl);
+      BetterFileDialogPeer.parseRequest(SwtDialogPeer.peerRequest(request).toArray(new String[0]));
+      BetterFileDialogPeer.process();
+    } catch (Throwable e) {
+      response.error("" + e.getMessage());
+      e.printStackTrace();
+    } finally {
+      // Hide the shell between dialogs, as a resident peer does.
+      if (BetterFileDialogPeer.swtShell != null && !BetterFileDialogPeer.swtShell.isDisposed())
+        BetterFileDialogPeer.swtShell.setVisible(false);
+      BetterFileDialogPeer.sink = null;
+      done.countDown();
+    }
+  }
+
+  // Passes the outcome of a dialog straight to the client's Response.
+  private static final class ResponseSink implements BetterFileDialogPeer.Sink {
+    final Response response;
+    final int traceLevel;
+    ResponseSink(Response response, int traceLevel) {
+      this.response = response;
+      this.traceLevel = traceLevel;
+    }
+    public void shown() { response.shown(); }
+    public void closed() { response.closed(); }
+    public void canceled() { response.canceled(); }
+    public void error(String message) { response.error(message); }
+    public void result(String path) { response.result(path); }
+    public void results(String dir, String[] names) {
+      response.results(dir, names.length);
+      for (String name : names)
+        response.resultName(name);
+    }
+    public void checkedOverwrite() { response.checkedOverwrite(); }
+    public void suggestExtension(String ext) { response.suggestExtension(ext); }
+    public void heartbeat() { } // nobody to tell, there is no watchdog in-process
+    public void trace(int lvl, String msg) {
+      BetterFileDialog.traceAt(traceLevel, lvl, "SWT > {}", msg);
+    }
+  }
+
+}